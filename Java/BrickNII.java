@@ -0,0 +1,50 @@
+import nii.Nifti1Dataset;
+import slicer.BrickedBlob;
+
+public class BrickNII {
+    public static final String NIFTI = "nifti=";
+    public static final String BRICK = "brick=";
+
+    public static void main(String[] args) throws Exception {
+        String nifti = null;
+        int brick = 32;
+        for (String arg : args) {
+            if (arg.startsWith(NIFTI))
+                nifti = arg.substring(NIFTI.length());
+            else if (arg.startsWith(BRICK))
+                brick = Integer.parseInt(arg.substring(BRICK.length()));
+            else {
+                System.err.println("Unknown argument: " + arg);
+                help();
+                return;
+            }
+        }
+        if (nifti == null) {
+            System.err.println("Missing argument: nifti=<nifti file>");
+            help();
+            return;
+        }
+        if (brick < 2 || Integer.bitCount(brick) != 1) {
+            System.err.println("Brick size has to be a power of 2: " + brick);
+            help();
+            return;
+        }
+        Nifti1Dataset n1d = new Nifti1Dataset(nifti);
+        n1d.readHeader();
+        BrickedBlob.write(n1d, Integer.numberOfTrailingZeros(brick));
+        System.out.println(n1d.ds_datname + BrickedBlob.EXTENSION + " created.");
+    }
+
+    public static void help() {
+        System.out.println("Usage:");
+        System.out.println("java BrickNII nifti=<nifti file> [brick=<size>]");
+        System.out.println();
+        System.out.println("Where");
+        System.out.println("- <nifti file> is a NIfTI volume, optionally gzip-compressed");
+        System.out.println("- <size> is the edge of the cubic bricks in voxels, a power of 2 (default: 32)");
+        System.out.println();
+        System.out.println("The bricked copy is created next to the volume, with " + BrickedBlob.EXTENSION
+                + " appended to its name.");
+        System.out.println("NIISlicer uses it when the storage=bricked option is given.");
+    }
+}
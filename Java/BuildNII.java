@@ -6,6 +6,7 @@ import java.util.Map;
 
 import javax.imageio.ImageIO;
 
+import metrics.Metrics;
 import nii.Nifti1Dataset;
 import quicknii.Series;
 import quicknii.Slice;
@@ -13,15 +14,19 @@ import quicknii.Slice;
 public class BuildNII {
 	public static final String JSON="json=";
 	public static final String NIFTI="nifti=";
+	public static final String METRICS="metrics=";
 	
 	public static void main(String[] args) throws Exception {
         String nifti = null;
         String json = null;
+        String report = null;
         for (String arg : args) {
             if (arg.startsWith(NIFTI))
                 nifti = arg.substring(NIFTI.length());
             else if (arg.startsWith(JSON))
                 json = arg.substring(JSON.length());
+            else if (arg.startsWith(METRICS))
+                report = arg.substring(METRICS.length());
             else {
                 System.err.println("Unknown argument: " + arg);
                 help();
@@ -44,29 +49,37 @@ public class BuildNII {
             return;
         }
 
+        Metrics metrics = new Metrics(Metrics.WRITE);
+        long t = metrics.start();
         Series series = new Series();
         try (FileReader fr = new FileReader(json)) {
             Map<String, String> resolver = new HashMap<>();
             resolver.put("resolution", "target-resolution");
             parsers.JSON.mapObject(parsers.JSON.parse(fr), series, resolver);
         }
+        metrics.add("json", null, t, 0, new File(json).length());
+        t = metrics.start();
         series.propagate();
+        metrics.add("propagate", null, t, 0, 0);
 
         int xdim=series.resolution.get(0).intValue();
         int ydim=series.resolution.get(1).intValue();
         int zdim=series.resolution.get(2).intValue();
 		
-		final long start=System.currentTimeMillis();
+		t=metrics.start();
 		short R[]=new short[xdim*ydim*zdim];
 		short G[]=new short[xdim*ydim*zdim];
 		short B[]=new short[xdim*ydim*zdim];
 		short C[]=new short[xdim*ydim*zdim];
 		byte RGB[]=new byte[xdim*ydim*zdim*3];
-		System.out.println(System.currentTimeMillis()-start);
+		metrics.add("allocate", null, t, 0, (R.length+G.length+B.length+C.length)*2L+RGB.length);
 		
 		for(Slice s:series.slices) {
 			System.out.println(s.filename);
+			t=metrics.start();
 			BufferedImage bi=ImageIO.read(new File(s.filename));
+			metrics.add("read", s.filename, t, (long)bi.getWidth()*bi.getHeight(), new File(s.filename).length());
+			t=metrics.start();
 			double ox=s.anchoring.get(0);
 			double oy=s.anchoring.get(1);
 			double oz=s.anchoring.get(2);
@@ -100,9 +113,10 @@ public class BuildNII {
 						}
 					}
 				}
+			metrics.add("accumulate", s.filename, t, (long)bi.getWidth()*bi.getHeight(), 0);
 		}
-		System.out.println(System.currentTimeMillis()-start);
 		System.out.println("Pack");
+		t=metrics.start();
 		for(int i=0;i<xdim*ydim*zdim;i++)
 		{
 			int c=C[i];
@@ -117,8 +131,9 @@ public class BuildNII {
 			RGB[i*3+1]=(byte)(G[i]/c);
 			RGB[i*3+2]=(byte)(B[i]/c);
 		}
-		System.out.println(System.currentTimeMillis()-start);
+		metrics.add("pack", null, t, 0, RGB.length);
 		System.out.println("Write");
+		t=metrics.start();
 		Nifti1Dataset nii=new Nifti1Dataset(nifti);
 		nii.setDims((short)3, (short)xdim, (short)ydim, (short)zdim, (short)0, (short)0, (short)0, (short)0);
 		nii.sform_code=Nifti1Dataset.NIFTI_XFORM_SCANNER_ANAT;
@@ -127,16 +142,21 @@ public class BuildNII {
 		nii.setHeaderFilename(nifti);
 		nii.writeHeader();
 		nii.writeData(RGB);
-		System.out.println(System.currentTimeMillis()-start);
+		metrics.add(Metrics.WRITE, null, t, 0, new File(nifti).length());
+		if(report!=null)
+			metrics.writeJson(report);
+		else
+			metrics.printTable(System.out);
 	}
 
     public static void help() {
         System.out.println("Usage:");
-        System.out.println("java BuildNII json=<json file> nifti=<nifti file>");
+        System.out.println("java BuildNII json=<json file> nifti=<nifti file> [metrics=<report file>]");
         System.out.println();
         System.out.println("Where");
         System.out.println("- <json file> is a QuickNII JSON file");
         System.out.println("- <nifti file> is the uncompressed NIfTI file to be created");
+        System.out.println("- <report file> optionally receives the time and throughput of each stage as JSON, instead of printing them");
         System.out.println();
         System.out.println("BuildNII will look for the actual image files in the current directory.");
     }
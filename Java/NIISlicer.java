@@ -1,20 +1,51 @@
-import java.awt.image.BufferedImage;
+import java.awt.Dimension;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
-import javax.imageio.ImageIO;
-
+import flat.Flat;
+import metrics.Metrics;
 import nii.Nifti1Dataset;
 import parsers.ITKLabel;
+import png.PngWriter;
 import quicknii.Series;
 import quicknii.Slice;
 import slicer.Int32Slices;
+import slicer.LabelCounts;
+import slicer.MultiSlices;
+import slicer.Outline;
+import slicer.Pipeline;
+import slicer.Pyramid;
+import slicer.Storage;
+import slicer.VolumeStats;
 
 public class NIISlicer {
     public static final String NIFTI = "nifti=";
@@ -22,99 +53,1245 @@ public class NIISlicer {
     public static final String LABEL = "label=";
     public static final String GRAYSCALE = "grayscale";
     public static final String BIN = "bin";
+    public static final String THREADS = "threads=";
+    public static final String STORAGE = "storage=";
+    public static final String PREVIEW = "preview=";
+    public static final String GLOBAL = "global";
+    public static final String RAW = "raw";
+    public static final String VOLUMES = "t=";
+    public static final String AREAS = "areas=";
+    public static final String STREAM = "stream";
+    public static final String PIPELINE = "pipeline=";
+    public static final String QUEUE = "queue=";
+    public static final String DEFLATE = "deflate=";
+    public static final String FILTER = "filter=";
+    public static final String PNG_THREADS = "pngthreads=";
+    public static final String INDEXED = "indexed";
+    public static final String GRAY16 = "gray16";
+    public static final String FLAT = "flat";
+    public static final String UNKNOWN = "unknown=";
+    public static final String METRICS = "metrics";
+    public static final String INCREMENTAL = "incremental";
+    public static final String BATCH = "batch=";
+    public static final String WIDTH = "width=";
+    public static final String HEIGHT = "height=";
+    public static final String SCALE = "scale=";
+    public static final String OUTLINE = "outline";
+    public static final String OUTLINE_COLOR = "outlinecolor=";
+
+    /**
+     * Label outlines: edges in the label colors on a transparent background, or
+     * edges in the outline color drawn over the label colors.
+     */
+    enum Outlines {
+        TRANSPARENT, BLEND
+    }
+
+    /**
+     * Options of one run which the export steps need, filled in from the
+     * arguments, and the metrics, manifest and opened volumes of the run.
+     */
+    static class Options {
+        boolean bin = false;
+        boolean raw = false;
+        int threads = 1;
+        Storage storage = Storage.MAPPED;
+        int preview = 0;
+        double global[] = null;
+        int outputWidth = 0;
+        int outputHeight = 0;
+        double scale = 1;
+        int deflate = Deflater.DEFAULT_COMPRESSION;
+        PngWriter.Filter filter = PngWriter.Filter.ADAPTIVE;
+        /**
+         * deflates the blocks of rows of every image of the run, null deflates on
+         * the writing threads
+         */
+        ForkJoinPool pngPool = null;
+        boolean indexed = false;
+        boolean gray16 = false;
+        boolean flat = false;
+        int unknown = 0;
+        Outlines outline = null;
+        int outlineColor = 0;
+        Metrics metrics = null;
+        String metricsFile = null;
+        /**
+         * manifest of an incremental run, null otherwise
+         */
+        Manifest manifest = null;
+        /**
+         * volumes opened by {@link NIISlicer#open}, closed at the end of the run
+         */
+        final List<Int32Slices> opened = new ArrayList<>();
+
+        void measure(String stage, String item, long start, long pixels, long bytes) {
+            if (metrics != null)
+                metrics.add(stage, item, start, pixels, bytes);
+        }
+    }
 
     public static void main(String[] args) throws Exception {
-        String nifti = null;
+        final Options options = new Options();
+        boolean success;
+        try {
+            success = slice(args, options);
+        } finally {
+            if (options.manifest != null)
+                options.manifest.save();
+            if (options.pngPool != null)
+                options.pngPool.shutdown();
+            for (Int32Slices slicer : options.opened)
+                slicer.close();
+        }
+        if (options.metrics != null && !options.metrics.isEmpty())
+            if (options.metricsFile != null)
+                options.metrics.writeJson(options.metricsFile);
+            else
+                options.metrics.printTable(System.err);
+        if (!success)
+            System.exit(1);
+    }
+
+    /**
+     * @param options filled in from the arguments
+     * @return false when some series of a batch failed
+     */
+    static boolean slice(String[] args, Options options) throws Exception {
+        List<String> niftis = new ArrayList<>();
+        List<String> volumeLabels = new ArrayList<>();
+        List<Boolean> volumeGrayscale = new ArrayList<>();
         String json = null;
         String label = null;
         boolean grayscale = false;
-        boolean bin = false;
+        boolean stacks = false;
+        int volumes[] = null;
+        String areas = null;
+        boolean stream = false;
+        boolean incremental = false;
+        String batch = null;
+        int workers[] = null;
+        int queue = 4;
         for (String arg : args) {
-            if (arg.startsWith(NIFTI))
-                nifti = arg.substring(NIFTI.length());
-            else if (arg.startsWith(JSON))
+            if (arg.startsWith(NIFTI)) {
+                niftis.add(arg.substring(NIFTI.length()));
+                volumeLabels.add(null);
+                volumeGrayscale.add(false);
+            } else if (arg.startsWith(JSON))
                 json = arg.substring(JSON.length());
-            else if (arg.startsWith(LABEL))
-                label = arg.substring(LABEL.length());
-            else if (arg.equals(GRAYSCALE))
-                grayscale = true;
-            else if (arg.equals(BIN))
-                bin = true;
-            else {
+            else if (arg.startsWith(LABEL)) {
+                if (niftis.isEmpty())
+                    label = arg.substring(LABEL.length());
+                else
+                    volumeLabels.set(niftis.size() - 1, arg.substring(LABEL.length()));
+            } else if (arg.equals(GRAYSCALE)) {
+                if (niftis.isEmpty())
+                    grayscale = true;
+                else
+                    volumeGrayscale.set(niftis.size() - 1, true);
+            } else if (arg.equals(BIN))
+                options.bin = true;
+            else if (arg.equals(RAW))
+                options.raw = true;
+            else if (arg.startsWith(VOLUMES)) {
+                stacks = true;
+                String list = arg.substring(VOLUMES.length());
+                if (!list.equals("all"))
+                    volumes = Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+            } else if (arg.equals(STREAM))
+                stream = true;
+            else if (arg.startsWith(PIPELINE)) {
+                workers = Arrays.stream(arg.substring(PIPELINE.length()).split(",")).mapToInt(Integer::parseInt)
+                        .toArray();
+                if (workers.length != 4) {
+                    System.err.println("pipeline= needs 4 worker counts: <sample>,<colorize>,<encode>,<write>");
+                    return true;
+                }
+            } else if (arg.startsWith(QUEUE))
+                queue = Integer.parseInt(arg.substring(QUEUE.length()));
+            else if (arg.startsWith(DEFLATE))
+                options.deflate = Integer.parseInt(arg.substring(DEFLATE.length()));
+            else if (arg.startsWith(FILTER))
+                options.filter = PngWriter.Filter.valueOf(arg.substring(FILTER.length()).toUpperCase());
+            else if (arg.startsWith(PNG_THREADS)) {
+                final int pngThreads = Integer.parseInt(arg.substring(PNG_THREADS.length()));
+                if (options.pngPool != null)
+                    options.pngPool.shutdown();
+                options.pngPool = pngThreads > 1 ? new ForkJoinPool(pngThreads) : null;
+            }
+            else if (arg.equals(INDEXED))
+                options.indexed = true;
+            else if (arg.equals(GRAY16))
+                options.gray16 = true;
+            else if (arg.equals(FLAT))
+                options.flat = true;
+            else if (arg.startsWith(BATCH))
+                batch = arg.substring(BATCH.length());
+            else if (arg.equals(INCREMENTAL))
+                incremental = true;
+            else if (arg.equals(METRICS))
+                options.metrics = new Metrics(Metrics.WRITE, "stream");
+            else if (arg.startsWith(METRICS + "=")) {
+                options.metrics = new Metrics(Metrics.WRITE, "stream");
+                options.metricsFile = arg.substring(METRICS.length() + 1);
+            } else if (arg.startsWith(UNKNOWN))
+                options.unknown = Integer.parseInt(arg.substring(UNKNOWN.length()), 16);
+            else if (arg.equals(OUTLINE))
+                options.outline = Outlines.TRANSPARENT;
+            else if (arg.startsWith(OUTLINE + "="))
+                options.outline = Outlines.valueOf(arg.substring(OUTLINE.length() + 1).toUpperCase());
+            else if (arg.startsWith(OUTLINE_COLOR))
+                options.outlineColor = Integer.parseInt(arg.substring(OUTLINE_COLOR.length()), 16);
+            else if (arg.startsWith(AREAS))
+                areas = arg.substring(AREAS.length());
+            else if (arg.startsWith(THREADS))
+                options.threads = Integer.parseInt(arg.substring(THREADS.length()));
+            else if (arg.startsWith(STORAGE))
+                options.storage = Storage.valueOf(arg.substring(STORAGE.length()).toUpperCase());
+            else if (arg.startsWith(WIDTH))
+                options.outputWidth = Integer.parseInt(arg.substring(WIDTH.length()));
+            else if (arg.startsWith(HEIGHT))
+                options.outputHeight = Integer.parseInt(arg.substring(HEIGHT.length()));
+            else if (arg.startsWith(SCALE))
+                options.scale = Double.parseDouble(arg.substring(SCALE.length()));
+            else if (arg.startsWith(PREVIEW))
+                options.preview = Integer.parseInt(arg.substring(PREVIEW.length()));
+            else if (arg.equals(GLOBAL))
+                options.global = new double[] { 0, 100 };
+            else if (arg.startsWith(GLOBAL + "=")) {
+                String range[] = arg.substring(GLOBAL.length() + 1).split(",");
+                options.global = new double[] { Double.parseDouble(range[0]), Double.parseDouble(range[1]) };
+            } else {
                 System.err.println("Unknown argument: " + arg);
                 help();
-                return;
+                return true;
             }
         }
-        if (nifti == null) {
+        if (niftis.isEmpty()) {
             System.err.println("Missing argument: nifti=<nifti file>");
             help();
-            return;
+            return true;
+        }
+        if ((options.outputWidth > 0 || options.outputHeight > 0 || options.scale != 1) && options.preview > 0) {
+            System.err.println("width=, height= and scale= can not be combined with preview.");
+            return true;
+        }
+        if (options.scale != 1 && (options.outputWidth > 0 || options.outputHeight > 0)) {
+            System.err.println("scale= can not be combined with width= and height=.");
+            return true;
+        }
+        if (options.raw && !options.bin) {
+            System.err.println("raw only changes what bin writes, it needs bin.");
+            return true;
+        }
+        if (options.outline != null && label == null && volumeLabels.stream().allMatch(l -> l == null)) {
+            System.err.println("outline needs a label file (label=).");
+            return true;
+        }
+        if (incremental && areas != null) {
+            System.err.println("incremental can not be combined with areas.");
+            return true;
+        }
+        if (batch != null) {
+            if (json != null || niftis.size() > 1 || stacks || areas != null || stream || workers != null) {
+                System.err.println(
+                        "batch can not be combined with json=, multiple volumes, t=<volumes>, areas, stream or pipeline.");
+                return true;
+            }
+            return batch(jsons(batch), niftis.get(0), volumeLabels.get(0) != null ? volumeLabels.get(0) : label,
+                    grayscale || volumeGrayscale.get(0), options, incremental ? Manifest.options(args) : null);
         }
         if (json == null) {
             System.err.println("Missing argument: json=<QuickNII json file>");
             help();
-            return;
+            return true;
+        }
+        final Series series = series(json, null, options);
+        for (int i = 0; i < niftis.size(); i++) {
+            if (volumeLabels.get(i) == null)
+                volumeLabels.set(i, label);
+            volumeGrayscale.set(i, volumeGrayscale.get(i) || grayscale);
+        }
+        if (incremental) {
+            options.manifest = new Manifest(new File(stem(json) + Manifest.EXTENSION));
+            final int stackVolumes[] = !stacks ? null : volumes != null ? volumes : allVolumes(niftis.get(0));
+            changed(series, options.manifest, Manifest.options(args), niftis, stackVolumes, options);
+        }
+        if (niftis.size() > 1) {
+            if (stacks || options.raw || options.preview > 0 || areas != null || stream || workers != null) {
+                System.err.println(
+                        "Multiple volumes can not be combined with t=<volumes>, raw, preview, areas, stream or pipeline.");
+                return true;
+            }
+            sliceAll(series, niftis, volumeLabels, volumeGrayscale, options);
+            return true;
         }
-        Map<Integer, ITKLabel> labels = null;
-        if (label != null)
-            labels = ITKLabel.parseLabels(label);
-        Series series = new Series();
+        final String nifti = niftis.get(0);
+        label = volumeLabels.get(0);
+        grayscale = volumeGrayscale.get(0);
+        long t = System.nanoTime();
+        final Map<Integer, ITKLabel> labels = label != null ? ITKLabel.parseLabels(label) : null;
+        Int32Slices slicer = open(nifti, grayscale, options);
+        slicer.setParallelism(options.threads);
+        final boolean gray = gray(slicer, grayscale);
+        final Coloring coloring = new Coloring(gray, labels, options);
+        options.measure("open", null, t, 0, 0);
+        if (stacks) {
+            if (options.raw || options.preview > 0 || areas != null || stream || workers != null) {
+                System.err.println("t=<volumes> can not be combined with raw, preview, areas, stream or pipeline.");
+                return true;
+            }
+            final String mod = mod(nifti);
+            for (Slice s : series.slices)
+                exportStack(s, slicer, volumes, mod, coloring, options);
+            return true;
+        }
+        if (stream) {
+            if (options.bin || options.flat || options.raw || areas != null || workers != null) {
+                System.err.println("stream can not be combined with bin, flat, raw, areas or pipeline.");
+                return true;
+            }
+            final String mod = mod(nifti);
+            if (options.threads <= 1) {
+                for (Slice s : series.slices)
+                    exportStream(s, slicer, mod, coloring, options);
+                return true;
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(options.threads);
+            try {
+                List<Future<Void>> futures = new ArrayList<>();
+                for (Slice s : series.slices)
+                    futures.add(executor.submit(() -> {
+                        exportStream(s, slicer, mod, coloring, options);
+                        return null;
+                    }));
+                for (Future<Void> f : futures)
+                    f.get();
+            } finally {
+                executor.shutdownNow();
+            }
+            return true;
+        }
+        final boolean reuse = !gray && options.preview == 0;
+        final String mod = mod(nifti);
+        if (workers != null) {
+            if (areas != null) {
+                System.err.println("pipeline can not be combined with areas.");
+                return true;
+            }
+            Pipeline<Job> pipeline = pipeline(slicer, workers, queue, gray, coloring, options);
+            List<Job> jobs = new ArrayList<>();
+            for (Slice s : series.slices)
+                jobs.add(new Job(s, mod, options));
+            pipeline.run(jobs);
+            System.err.print(pipeline);
+            return true;
+        }
+        final LabelCounts counts[] = areas != null ? new LabelCounts[series.slices.size()] : null;
+        final double pixelAreas[] = new double[series.slices.size()];
+        final double voxel[] = areas != null ? voxelSize(nifti) : null;
+        if (counts != null)
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = new LabelCounts();
+        final long waiting[] = { System.nanoTime() };
+        slicer.getSlices(series, gray, options.preview, counts, (i, slice) -> {
+            Slice s = series.slices.get(i);
+            final Job job = new Job(s, mod, options);
+            final long pixels = (long) slice.length * slice[0].length;
+            options.measure("sample", job.base, waiting[0], pixels, pixels * slicer.BPV);
+            if (voxel != null)
+                pixelAreas[i] = pixelArea(s, voxel, slice[0].length, slice.length);
+            job.slice = slice;
+            if (options.bin) {
+                final long r = System.nanoTime();
+                job.bin = options.raw ? raw(slicer, s, reuse ? slice : null) : slice;
+                if (options.raw)
+                    options.measure("raw", job.base, r, pixels, 0);
+            }
+            export(job, coloring);
+            waiting[0] = System.nanoTime();
+        });
+        if (areas != null)
+            writeAreas(areas, series, counts, pixelAreas, labels);
+        return true;
+    }
+
+    /**
+     * Reads and propagates a series.
+     * 
+     * @param dir directory of the outputs, prepended to the filenames of the
+     *            slices, null for the current directory
+     */
+    static Series series(String json, String dir, Options options) throws Exception {
+        final Series series = new Series();
+        long t = System.nanoTime();
         try (FileReader fr = new FileReader(json)) {
             Map<String, String> resolver = new HashMap<>();
             resolver.put("resolution", "target-resolution");
             parsers.JSON.mapObject(parsers.JSON.parse(fr), series, resolver);
         }
+        options.measure("json", null, t, 0, new File(json).length());
+        t = System.nanoTime();
         series.propagate();
-        Int32Slices slicer = new Int32Slices(nifti);
-        grayscale |= slicer.type == Nifti1Dataset.NIFTI_TYPE_FLOAT32;
-        String mod = nifti.substring(0, nifti.lastIndexOf('.'));
-        for (Slice s : series.slices) {
-            Double a[] = s.anchoring.toArray(new Double[0]);
-            int slice[][] = slicer.getInt32Slice(a[0], a[1], a[2], a[3], a[4], a[5], a[6], a[7], a[8], grayscale);
-            int h = slice.length;
-            int w = slice[0].length;
-            byte pix[] = new byte[w * h * (grayscale ? 1 : 3)];
-            if (grayscale)
-                for (int y = 0; y < h; y++)
-                    for (int x = 0; x < w; x++)
-                        pix[x + y * w] = (byte) (slice[y][x] >> 8);
-            else if (labels == null)
-                for (int y = 0; y < h; y++)
-                    for (int x = 0; x < w; x++)
-                        for (int i = 0; i < 3; i++)
-                            pix[(x + y * w) * 3 + 2 - i] = (byte) (slice[y][x] >> (8 * i));
+        options.measure("propagate", null, t, 0, 0);
+        if (dir != null)
+            for (Slice s : series.slices)
+                s.filename = new File(dir, s.filename).getPath();
+        return series;
+    }
+
+    /**
+     * @return the volume name appended to the names of its outputs: the filename
+     *         without .nii.gz / .gz and .nii, so compressed and uncompressed
+     *         volumes give the same names
+     */
+    static String mod(String nifti) {
+        String name = nifti;
+        if (name.endsWith(Nifti1Dataset.GZIP_EXT))
+            name = name.substring(0, name.length() - Nifti1Dataset.GZIP_EXT.length());
+        if (name.endsWith(Nifti1Dataset.NI1_EXT))
+            return name.substring(0, name.length() - Nifti1Dataset.NI1_EXT.length());
+        return name.equals(nifti) && name.contains(".") ? name.substring(0, name.lastIndexOf('.')) : name;
+    }
+
+    /**
+     * @return filename without directory and extension
+     */
+    static String stem(String filename) {
+        final String name = new File(filename).getName();
+        return name.contains(".") ? name.substring(0, name.lastIndexOf('.')) : name;
+    }
+
+    /**
+     * @param list directory of QuickNII JSON files, or a text file listing them,
+     *             one per line, relative to the list
+     * @return the JSON files
+     */
+    static List<String> jsons(String list) throws IOException {
+        List<String> jsons = new ArrayList<>();
+        final File file = new File(list);
+        if (file.isDirectory()) {
+            File files[] = file.listFiles((d, name) -> name.toLowerCase().endsWith(".json"));
+            Arrays.sort(files);
+            for (File f : files)
+                jsons.add(f.getPath());
+        } else
+            for (String line : Files.readAllLines(file.toPath())) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                    jsons.add(new File(line).isAbsolute() ? line : new File(file.getParentFile(), line).getPath());
+            }
+        return jsons;
+    }
+
+    /**
+     * Removes the slices which are current in the manifest from the series, and
+     * makes the manifest expect the others.
+     */
+    static void changed(Series series, Manifest manifest, String keys, List<String> niftis, int stackVolumes[],
+            Options options) throws Exception {
+        final int total = series.slices.size();
+        for (Iterator<Slice> it = series.slices.iterator(); it.hasNext();) {
+            Slice s = it.next();
+            String bases[] = new String[niftis.size()];
+            String sliceKeys[] = new String[niftis.size()];
+            boolean current = true;
+            for (int i = 0; i < bases.length; i++) {
+                bases[i] = s.filename.substring(0, s.filename.lastIndexOf('.')) + mod(niftis.get(i));
+                sliceKeys[i] = Manifest.key(keys, s, bases[i]);
+                current &= manifest.current(bases[i], sliceKeys[i], outputs(bases[i], stackVolumes, options));
+            }
+            if (current)
+                it.remove();
             else
-                for (int y = 0; y < h; y++)
-                    for (int x = 0; x < w; x++) {
-                        ITKLabel l = labels.get(slice[y][x]);
-                        pix[(x + y * w) * 3] = l.red;
-                        pix[(x + y * w) * 3 + 1] = l.green;
-                        pix[(x + y * w) * 3 + 2] = l.blue;
+                for (int i = 0; i < bases.length; i++)
+                    manifest.expect(bases[i], sliceKeys[i]);
+        }
+        System.err.println(series.slices.size() + " of " + total + " slices changed.");
+    }
+
+    /**
+     * Exports several series from one volume in one go: the volume and its label
+     * colors are opened once, and the slices of every series are sampled and
+     * exported on the same pool of threads. Outputs are written next to the JSON
+     * file of their series. A failing series is reported at the end, it does not
+     * stop the others.
+     * 
+     * @param keys options for the manifests of incremental exports (see
+     *             {@link Manifest#options}), null for exporting everything
+     * @return true when every series was exported
+     */
+    static boolean batch(List<String> jsons, String nifti, String label, boolean grayscale, Options options,
+            String keys) throws Exception {
+        long t = System.nanoTime();
+        final Map<Integer, ITKLabel> labels = label != null ? ITKLabel.parseLabels(label) : null;
+        final Int32Slices slicer = open(nifti, grayscale, options);
+        final boolean gray = gray(slicer, grayscale);
+        final Coloring coloring = new Coloring(gray, labels, options);
+        options.measure("open", null, t, 0, 0);
+        final String mod = mod(nifti);
+        final boolean reuse = !gray && options.preview == 0;
+        final Map<String, Throwable> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+        final List<Manifest> manifests = new ArrayList<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, options.threads));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (String json : jsons)
+                try {
+                    final String dir = new File(json).getParent();
+                    final Series series = series(json, dir, options);
+                    Manifest m = null;
+                    if (keys != null) {
+                        m = new Manifest(new File(dir, stem(json) + Manifest.EXTENSION));
+                        manifests.add(m);
+                        System.err.print(json + ": ");
+                        changed(series, m, keys, Collections.singletonList(nifti), null, options);
+                    }
+                    final Manifest jobManifest = m;
+                    for (Slice s : series.slices)
+                        futures.add(executor.submit(() -> {
+                            if (failures.containsKey(json))
+                                return;
+                            try {
+                                final long start = System.nanoTime();
+                                double a[] = new double[9];
+                                for (int i = 0; i < a.length; i++)
+                                    a[i] = s.anchoring.get(i);
+                                final Job job = new Job(s, mod, options);
+                                job.manifest = jobManifest;
+                                job.slice = slicer.getInt32Slice(a[0], a[1], a[2], a[3], a[4], a[5], a[6], a[7],
+                                        a[8], gray, options.preview);
+                                if (options.bin)
+                                    job.bin = options.raw ? raw(slicer, s, reuse ? job.slice : null) : job.slice;
+                                final long pixels = (long) job.slice.length * job.slice[0].length;
+                                options.measure("sample", job.base, start, pixels, pixels * slicer.BPV);
+                                export(job, coloring);
+                            } catch (Throwable e) {
+                                failures.putIfAbsent(json, e);
+                            }
+                        }));
+                } catch (Exception e) {
+                    failures.put(json, e);
+                }
+            for (Future<?> f : futures)
+                f.get();
+        } finally {
+            executor.shutdownNow();
+            for (Manifest m : manifests)
+                m.save();
+        }
+        System.err.println((jsons.size() - failures.size()) + " of " + jsons.size() + " series exported.");
+        for (Map.Entry<String, Throwable> e : failures.entrySet())
+            System.err.println("Failed: " + e.getKey() + ": " + e.getValue());
+        return failures.isEmpty();
+    }
+
+    /**
+     * Opens a volume with the storage, output size and grayscale normalization of
+     * the options. The volume is closed at the end of the run.
+     */
+    static Int32Slices open(String nifti, boolean grayscale, Options options) throws Exception {
+        final Int32Slices slicer = new Int32Slices(nifti, options.storage);
+        options.opened.add(slicer);
+        slicer.setOutputSize(options.outputWidth, options.outputHeight, options.scale);
+        if (options.global != null && gray(slicer, grayscale))
+            slicer.setNormalization(VolumeStats.of(slicer), options.global[0], options.global[1]);
+        return slicer;
+    }
+
+    /**
+     * @return true when the slices of the volume are scaled into gray levels,
+     *         which is implied for floating point volumes
+     */
+    static boolean gray(Int32Slices slicer, boolean grayscale) {
+        return grayscale || slicer.type == Nifti1Dataset.NIFTI_TYPE_FLOAT32
+                || slicer.type == Nifti1Dataset.NIFTI_TYPE_FLOAT64;
+    }
+
+    /**
+     * @return size of a voxel along x, y and z in micrometers, millimeters are
+     *         assumed when the header does not specify the unit
+     */
+    static double[] voxelSize(String nifti) throws Exception {
+        Nifti1Dataset n1d = new Nifti1Dataset(nifti);
+        n1d.readHeader();
+        double unit;
+        switch (n1d.xyzt_units & 0x07) {
+        case Nifti1Dataset.NIFTI_UNITS_METER:
+            unit = 1e6;
+            break;
+        case Nifti1Dataset.NIFTI_UNITS_MICRON:
+            unit = 1;
+            break;
+        default:
+            unit = 1e3;
+        }
+        return new double[] { Math.abs(n1d.pixdim[1]) * unit, Math.abs(n1d.pixdim[2]) * unit,
+                Math.abs(n1d.pixdim[3]) * unit };
+    }
+
+    /**
+     * @return area of a pixel of the slice in square micrometers
+     */
+    static double pixelArea(Slice s, double voxel[], int width, int height) {
+        final double ux = s.anchoring.get(3) * voxel[0];
+        final double uy = s.anchoring.get(4) * voxel[1];
+        final double uz = s.anchoring.get(5) * voxel[2];
+        final double vx = s.anchoring.get(6) * voxel[0];
+        final double vy = s.anchoring.get(7) * voxel[1];
+        final double vz = s.anchoring.get(8) * voxel[2];
+        final double nx = uy * vz - uz * vy;
+        final double ny = uz * vx - ux * vz;
+        final double nz = ux * vy - uy * vx;
+        return Math.sqrt(nx * nx + ny * ny + nz * nz) / width / height;
+    }
+
+    /**
+     * Writes the label counts of the series as CSV, one line per label of each
+     * slice.
+     */
+    static void writeAreas(String filename, Series series, LabelCounts counts[], double pixelAreas[],
+            Map<Integer, ITKLabel> labels) throws IOException {
+        try (PrintWriter pw = new PrintWriter(filename)) {
+            pw.println("filename,nr,label,name,pixels,area_um2");
+            for (int i = 0; i < counts.length; i++) {
+                Slice s = series.slices.get(i);
+                for (int label : counts[i].labels()) {
+                    ITKLabel l = labels != null ? labels.get(label) : null;
+                    final long pixels = counts[i].get(label);
+                    pw.println(quote(s.filename) + "," + (int) s.nr + "," + label + "," + quote(l != null ? l.name : "")
+                            + "," + pixels + "," + pixels * pixelAreas[i]);
+                }
+            }
+        }
+    }
+
+    private static String quote(String field) {
+        return "\"" + field.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * @param slice Int32 slice, used as is when not null
+     * @return full resolution slice of the actual voxel values, double[][] for
+     *         floating point volumes, long[][] for INT64 volumes, int[][]
+     *         otherwise
+     */
+    static Object raw(Int32Slices slicer, Slice s, int slice[][]) throws IOException {
+        double a[] = new double[9];
+        for (int i = 0; i < a.length; i++)
+            a[i] = s.anchoring.get(i);
+        switch (slicer.type) {
+        case Nifti1Dataset.NIFTI_TYPE_FLOAT32:
+        case Nifti1Dataset.NIFTI_TYPE_FLOAT64:
+            return slicer.getFloat64Slice(a[0], a[1], a[2], a[3], a[4], a[5], a[6], a[7], a[8]);
+        case Nifti1Dataset.NIFTI_TYPE_INT64:
+            return slicer.getInt64Slice(a[0], a[1], a[2], a[3], a[4], a[5], a[6], a[7], a[8]);
+        default:
+            return slice != null ? slice : slicer.getInt32Slice(a[0], a[1], a[2], a[3], a[4], a[5], a[6], a[7], a[8], false);
+        }
+    }
+
+    /**
+     * A slice on its way through the export, each stage fills in its part.
+     */
+    static class Job {
+        final Slice s;
+        final Options options;
+        /**
+         * output filename without extension
+         */
+        final String base;
+        int slice[][];
+        Object bin;
+        long pixels;
+        byte rows[][];
+        int flat[][];
+        byte png[];
+        byte binData[];
+        ByteBuffer flatData;
+        /**
+         * records the slice when written, if not null
+         */
+        Manifest manifest;
+
+        Job(Slice s, String mod, Options options) {
+            this.s = s;
+            this.options = options;
+            base = s.filename.substring(0, s.filename.lastIndexOf('.')) + mod;
+            manifest = options.manifest;
+        }
+    }
+
+    /**
+     * Builds the export pipeline: sampling, colorizing, encoding (PNG and .bin
+     * compression) and writing run on their own threads, with bounded queues
+     * between them.
+     * 
+     * @param workers number of threads of the sample, colorize, encode and write
+     *                stages
+     * @param queue   length of the queue in front of each stage
+     */
+    static Pipeline<Job> pipeline(Int32Slices slicer, int workers[], int queue, boolean grayscale,
+            Coloring coloring, Options options) {
+        final boolean reuse = !grayscale && options.preview == 0;
+        return new Pipeline<Job>().stage("sample", workers[0], queue, job -> {
+            final long t = System.nanoTime();
+            double a[] = new double[9];
+            for (int i = 0; i < a.length; i++)
+                a[i] = job.s.anchoring.get(i);
+            job.slice = slicer.getInt32Slice(a[0], a[1], a[2], a[3], a[4], a[5], a[6], a[7], a[8], grayscale,
+                    options.preview);
+            if (options.bin)
+                job.bin = options.raw ? raw(slicer, job.s, reuse ? job.slice : null) : job.slice;
+            final long pixels = (long) job.slice.length * job.slice[0].length;
+            options.measure("sample", job.base, t, pixels, pixels * slicer.BPV);
+        }).stage("colorize", workers[1], queue, job -> colorize(job, coloring))
+                .stage("encode", workers[2], queue, job -> encode(job, coloring))
+                .stage("write", workers[3], queue, job -> write(job));
+    }
+
+    /**
+     * Turns job.slice into PNG rows, and .flat values when needed.
+     */
+    static void colorize(Job job, Coloring coloring) throws Exception {
+        final long t = System.nanoTime();
+        final int slice[][] = job.slice;
+        job.pixels = (long) slice.length * slice[0].length;
+        final byte rows[][] = job.rows = new byte[slice.length][];
+        if (coloring.outlines != null) {
+            Outline outline = new Outline(slice[0].length,
+                    (y, row, edges) -> coloring.row(row, edges, rows[y] = new byte[row.length * coloring.bytes]));
+            for (int y = 0; y < slice.length; y++)
+                outline.accept(y, slice[y]);
+            outline.finish();
+        } else
+            for (int y = 0; y < slice.length; y++)
+                coloring.row(slice[y], rows[y] = new byte[slice[y].length * coloring.bytes]);
+        if (job.options.flat)
+            job.flat = coloring.flat(slice);
+        job.slice = null;
+        job.options.measure("colorize", job.base, t, job.pixels, job.pixels * coloring.bytes);
+    }
+
+    /**
+     * Encodes the PNG image, compresses the .bin contents and packs the .flat
+     * values, into memory.
+     */
+    static void encode(Job job, Coloring coloring) throws IOException {
+        final long t = System.nanoTime();
+        long bytes = 0;
+        if (job.rows != null) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (PngWriter png = coloring.writer(baos, job.rows[0].length / coloring.bytes, job.rows.length)) {
+                for (byte row[] : job.rows)
+                    png.writeRow(row);
+            }
+            job.rows = null;
+            job.png = baos.toByteArray();
+            bytes += job.png.length;
+        }
+        if (job.bin != null) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            writeBin(baos, job.bin);
+            job.bin = null;
+            job.binData = baos.toByteArray();
+            bytes += job.binData.length;
+        }
+        if (job.flat != null) {
+            job.flatData = Flat.encode(job.flat);
+            job.flat = null;
+            bytes += job.flatData.remaining();
+        }
+        job.options.measure("encode", job.base, t, job.pixels, bytes);
+    }
+
+    static void write(Job job) throws IOException {
+        final long t = System.nanoTime();
+        long bytes = 0;
+        if (job.png != null) {
+            Files.write(Paths.get(job.base + ".png"), job.png);
+            bytes += job.png.length;
+        }
+        job.png = null;
+        if (job.binData != null) {
+            Files.write(Paths.get(job.base + ".bin"), job.binData);
+            bytes += job.binData.length;
+        }
+        job.binData = null;
+        if (job.flatData != null) {
+            bytes += job.flatData.remaining();
+            Flat.write(job.base + Flat.EXTENSION, job.flatData);
+        }
+        job.flatData = null;
+        job.options.measure(Metrics.WRITE, job.base, t, job.pixels, bytes);
+        if (job.manifest != null)
+            job.manifest.done(job.base);
+    }
+
+    /**
+     * @return files exported for a slice, volumes is null unless 4D volumes are
+     *         exported
+     */
+    static List<String> outputs(String base, int volumes[], Options options) {
+        List<String> outputs = new ArrayList<>();
+        if (volumes == null)
+            volumes = new int[] { -1 };
+        for (int t : volumes) {
+            final String name = t < 0 ? base : base + "_t" + t;
+            outputs.add(name + ".png");
+            if (options.flat)
+                outputs.add(name + Flat.EXTENSION);
+        }
+        if (options.bin)
+            outputs.add(base + ".bin");
+        return outputs;
+    }
+
+    static int[] allVolumes(String nifti) throws Exception {
+        Nifti1Dataset n1d = new Nifti1Dataset(nifti);
+        n1d.readHeader();
+        int volumes[] = new int[Math.max(1, (int) n1d.TDIM)];
+        for (int t = 0; t < volumes.length; t++)
+            volumes[t] = t;
+        return volumes;
+    }
+
+    /**
+     * Keys of the slices exported by earlier runs, so only slices whose anchoring,
+     * output options or volumes changed are exported again. A key is a hash of
+     * the anchoring and output name of the slice, the options of the run (with the
+     * contents of label files) and the identity (size, modification time, header
+     * hash) of the volumes. Each line of the file is a key, a tab and an output
+     * name without extension. Entries are updated as slices are written.
+     */
+    static class Manifest {
+        static final String EXTENSION = ".manifest";
+        private static final String IGNORED[] = { JSON, THREADS, STORAGE, PIPELINE, QUEUE, PNG_THREADS, METRICS,
+                INCREMENTAL, BATCH };
+
+        final File file;
+        private final Map<String, String> entries = new TreeMap<>();
+        private final Map<String, String> pending = new HashMap<>();
+        private boolean changed;
+
+        Manifest(File file) throws IOException {
+            this.file = file;
+            if (file.exists())
+                for (String line : Files.readAllLines(file.toPath())) {
+                    final int tab = line.indexOf('\t');
+                    if (tab > 0)
+                        entries.put(line.substring(tab + 1), line.substring(0, tab));
+                }
+        }
+
+        /**
+         * @return output related arguments, with the identity of volumes (and of
+         *         their pyramid levels with preview) and the hash of label files
+         */
+        static String options(String args[]) throws Exception {
+            boolean preview = false;
+            for (String arg : args)
+                preview |= arg.startsWith(PREVIEW);
+            StringBuilder sb = new StringBuilder();
+            next: for (String arg : args) {
+                for (String ignored : IGNORED)
+                    if (arg.startsWith(ignored))
+                        continue next;
+                sb.append(arg);
+                if (arg.startsWith(LABEL))
+                    sb.append(' ').append(hash(Files.readAllBytes(Paths.get(arg.substring(LABEL.length())))));
+                else if (arg.startsWith(NIFTI)) {
+                    final String nifti = arg.substring(NIFTI.length());
+                    identity(sb, new File(nifti));
+                    // the levels which exist are the ones preview may sample
+                    for (int f = 2; preview && f <= 1 << Pyramid.LEVELS; f *= 2) {
+                        final File level = new File(Pyramid.levelName(nifti, f));
+                        if (!level.exists())
+                            break;
+                        identity(sb, level);
                     }
-            BufferedImage bi = new BufferedImage(w, h,
-                    grayscale ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR);
-            bi.getRaster().setDataElements(0, 0, w, h, pix);
-            ImageIO.write(bi, "png", new File(s.filename.substring(0, s.filename.lastIndexOf('.')) + mod + ".png"));
-            if (bin)
-                try (ObjectOutputStream oos = new ObjectOutputStream(new DeflaterOutputStream(
-                        new FileOutputStream(s.filename.substring(0, s.filename.lastIndexOf('.')) + mod + ".bin")))) {
-                    oos.writeObject(slice);
                 }
+                sb.append('\n');
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Appends the size, modification time and header hash of a volume.
+         */
+        private static void identity(StringBuilder sb, File nifti) throws Exception {
+            byte header[] = new byte[352];
+            int length = 0;
+            try (InputStream is = new FileInputStream(nifti)) {
+                for (int n; length < header.length && (n = is.read(header, length, header.length - length)) > 0;)
+                    length += n;
+            }
+            sb.append(' ').append(nifti.length()).append(' ').append(nifti.lastModified()).append(' ')
+                    .append(hash(Arrays.copyOf(header, length)));
+        }
+
+        static String key(String options, Slice s, String base) throws Exception {
+            StringBuilder sb = new StringBuilder(options);
+            sb.append(base);
+            for (double d : s.anchoring)
+                sb.append(' ').append(d);
+            return hash(sb.toString().getBytes("UTF-8"));
+        }
+
+        private static String hash(byte data[]) throws Exception {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(data))
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        }
+
+        /**
+         * @return true if the slice was exported with the same key, and its outputs
+         *         still exist
+         */
+        synchronized boolean current(String base, String key, List<String> outputs) {
+            if (!key.equals(entries.get(base)))
+                return false;
+            for (String output : outputs)
+                if (!new File(output).exists())
+                    return false;
+            return true;
+        }
+
+        /**
+         * Remembers the key of a slice to be exported, see {@link #done(String)}.
+         */
+        synchronized void expect(String base, String key) {
+            pending.put(base, key);
+        }
+
+        /**
+         * Records the key of an exported slice, other outputs are ignored.
+         */
+        synchronized void done(String base) {
+            final String key = pending.remove(base);
+            if (key != null) {
+                entries.put(base, key);
+                changed = true;
+            }
+        }
+
+        /**
+         * Writes the file if any entry changed, through a temporary file.
+         */
+        synchronized void save() throws IOException {
+            if (!changed)
+                return;
+            final File tmp = new File(file.getPath() + ".tmp");
+            try (PrintWriter pw = new PrintWriter(tmp, "UTF-8")) {
+                for (Map.Entry<String, String> e : entries.entrySet())
+                    pw.println(e.getValue() + "\t" + e.getKey());
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            changed = false;
+        }
+    }
+
+    /**
+     * Exports a slice without ever having all of it in memory: rows are converted
+     * and encoded into the PNG file as they are sampled.
+     */
+    static void exportStream(Slice s, Int32Slices slicer, String mod, Coloring coloring, Options options)
+            throws Exception {
+        final int preview = options.preview;
+        double a[] = new double[9];
+        for (int i = 0; i < a.length; i++)
+            a[i] = s.anchoring.get(i);
+        final long t = System.nanoTime();
+        Dimension d = slicer.getSliceSize(a[3], a[4], a[5], a[6], a[7], a[8], preview);
+        final int w = d.width;
+        final byte pix[] = new byte[w * coloring.bytes];
+        final File png = new File(s.filename.substring(0, s.filename.lastIndexOf('.')) + mod + ".png");
+        try (PngWriter writer = coloring.writer(new BufferedOutputStream(new FileOutputStream(png)), w, d.height)) {
+            if (coloring.outlines != null) {
+                Outline outline = new Outline(w, (y, row, edges) -> {
+                    coloring.row(row, edges, pix);
+                    writer.writeRow(pix);
+                });
+                slicer.getInt32Rows(a[0], a[1], a[2], a[3], a[4], a[5], a[6], a[7], a[8], coloring.grayscale,
+                        preview, outline);
+                outline.finish();
+            } else
+                slicer.getInt32Rows(a[0], a[1], a[2], a[3], a[4], a[5], a[6], a[7], a[8], coloring.grayscale,
+                        preview, (y, row) -> {
+                            coloring.row(row, pix);
+                            writer.writeRow(pix);
+                        });
+        }
+        final String base = png.getPath().substring(0, png.getPath().length() - 4);
+        options.measure("stream", base, t, (long) w * d.height, png.length());
+        if (options.manifest != null)
+            options.manifest.done(base);
+    }
+
+    /**
+     * Slices several volumes of the same dimensions in a single pass, each volume
+     * is exported like a single one would be.
+     */
+    static void sliceAll(Series series, List<String> niftis, List<String> labelFiles, List<Boolean> grayscale,
+            Options options) throws Exception {
+        final int count = niftis.size();
+        Int32Slices slicers[] = new Int32Slices[count];
+        final boolean gray[] = new boolean[count];
+        final Coloring colorings[] = new Coloring[count];
+        final String mods[] = new String[count];
+        final long t = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final String nifti = niftis.get(i);
+            slicers[i] = open(nifti, grayscale.get(i), options);
+            gray[i] = gray(slicers[i], grayscale.get(i));
+            colorings[i] = new Coloring(gray[i],
+                    labelFiles.get(i) != null ? ITKLabel.parseLabels(labelFiles.get(i)) : null, options);
+            mods[i] = mod(nifti);
+        }
+        options.measure("open", null, t, 0, 0);
+        int bytesPerPixel = 0;
+        for (Int32Slices slicer : slicers)
+            bytesPerPixel += slicer.BPV;
+        final long voxelBytes = bytesPerPixel;
+        MultiSlices multi = new MultiSlices(slicers);
+        multi.setParallelism(options.threads);
+        final long waiting[] = { System.nanoTime() };
+        multi.getSlices(series, gray, (i, slices) -> {
+            final long pixels = (long) slices[0].length * slices[0][0].length;
+            options.measure("sample", null, waiting[0], pixels * count, pixels * voxelBytes);
+            for (int k = 0; k < count; k++) {
+                final Job job = new Job(series.slices.get(i), mods[k], options);
+                job.slice = slices[k];
+                job.bin = options.bin ? slices[k] : null;
+                export(job, colorings[k]);
+            }
+            waiting[0] = System.nanoTime();
+        });
+    }
+
+    /**
+     * Exports the slices of a 4D dataset, volume t gets _t&lt;t&gt; appended to
+     * its name. The .bin file contains all of them, as an int[][][] array.
+     */
+    static void exportStack(Slice s, Int32Slices slicer, int volumes[], String mod, Coloring coloring,
+            Options options) throws Exception {
+        if (volumes == null) {
+            volumes = new int[slicer.TDIM];
+            for (int t = 0; t < volumes.length; t++)
+                volumes[t] = t;
+        }
+        double a[] = new double[9];
+        for (int i = 0; i < a.length; i++)
+            a[i] = s.anchoring.get(i);
+        final long t = System.nanoTime();
+        int stack[][][] = slicer.getInt32Stack(a[0], a[1], a[2], a[3], a[4], a[5], a[6], a[7], a[8],
+                coloring.grayscale, volumes);
+        final long pixels = (long) stack[0].length * stack[0][0].length * volumes.length;
+        options.measure("sample", null, t, pixels, pixels * slicer.BPV);
+        for (int i = 0; i < volumes.length; i++) {
+            final Job job = new Job(s, mod + "_t" + volumes[i], options);
+            job.slice = stack[i];
+            export(job, coloring);
+        }
+        if (options.bin) {
+            final Job job = new Job(s, mod, options);
+            job.bin = stack;
+            job.pixels = pixels;
+            encode(job, coloring);
+            write(job);
+        }
+        if (options.manifest != null)
+            options.manifest.done(s.filename.substring(0, s.filename.lastIndexOf('.')) + mod);
+    }
+
+    /**
+     * Exports a sampled slice (job.slice), and its .bin contents (job.bin) when
+     * not null.
+     */
+    static void export(Job job, Coloring coloring) throws Exception {
+        colorize(job, coloring);
+        encode(job, coloring);
+        write(job);
+    }
+
+    /**
+     * Turns slice rows into PNG rows: 8 or 16-bit gray, label colors as R, G, B
+     * or palette indices, label outlines, or the RGB voxels themselves.
+     */
+    static class Coloring {
+        final boolean grayscale;
+        final ITKLabel.Palette labels;
+        /**
+         * outline mode of label images, null for plain label colors
+         */
+        final Outlines outlines;
+        final int colorType;
+        final int bitDepth;
+        /**
+         * bytes per pixel
+         */
+        final int bytes;
+        private final Options options;
+
+        Coloring(boolean grayscale, Map<Integer, ITKLabel> labels, Options options) {
+            this.grayscale = grayscale;
+            this.options = options;
+            this.labels = grayscale || labels == null ? null : new ITKLabel.Palette(labels, options.unknown);
+            outlines = this.labels != null ? options.outline : null;
+            if (grayscale) {
+                colorType = PngWriter.GRAY;
+                bitDepth = options.gray16 ? 16 : 8;
+            } else if (outlines != null) {
+                colorType = outlines == Outlines.TRANSPARENT ? PngWriter.RGBA : PngWriter.RGB;
+                bitDepth = 8;
+            } else if (options.indexed && labels != null && labels.size() < 256) {
+                colorType = PngWriter.INDEXED;
+                bitDepth = 8;
+            } else {
+                if (options.indexed && labels != null)
+                    System.err.println("More than 255 labels, using RGB images instead of indexed ones.");
+                colorType = PngWriter.RGB;
+                bitDepth = 8;
+            }
+            bytes = (colorType == PngWriter.RGB ? 3 : colorType == PngWriter.RGBA ? 4 : 1) * bitDepth / 8;
+        }
+
+        /**
+         * @return values of the .flat output: position of the label in the label
+         *         file (like the palette of pyflat.py, unknown labels get the number
+         *         of labels), 8 or 16-bit gray levels of the image, or the voxel
+         *         values themselves
+         */
+        int[][] flat(int slice[][]) {
+            if (!grayscale && labels == null)
+                return slice;
+            int values[][] = new int[slice.length][];
+            for (int y = 0; y < slice.length; y++) {
+                final int row[] = slice[y];
+                final int v[] = values[y] = new int[row.length];
+                for (int x = 0; x < row.length; x++)
+                    v[x] = labels != null ? labels.index(row[x])
+                            : bitDepth == 16 ? row[x] & 0xFFFF : row[x] >> 8 & 0xFF;
+            }
+            return values;
+        }
+
+        /**
+         * @param pix receives the pixels of the row
+         */
+        void row(int row[], byte pix[]) {
+            final int w = pix.length / bytes;
+            if (grayscale && bitDepth == 16)
+                for (int x = 0; x < w; x++) {
+                    pix[x * 2] = (byte) (row[x] >> 8);
+                    pix[x * 2 + 1] = (byte) row[x];
+                }
+            else if (grayscale)
+                for (int x = 0; x < w; x++)
+                    pix[x] = (byte) (row[x] >> 8);
+            else if (labels == null)
+                for (int x = 0; x < w; x++)
+                    for (int i = 0; i < 3; i++)
+                        pix[x * 3 + 2 - i] = (byte) (row[x] >> (8 * i));
+            else if (colorType == PngWriter.INDEXED)
+                for (int x = 0; x < w; x++)
+                    pix[x] = (byte) labels.index(row[x]);
+            else
+                for (int x = 0; x < w; x++) {
+                    final int c = labels.rgb(row[x]);
+                    pix[x * 3] = (byte) (c >> 16);
+                    pix[x * 3 + 1] = (byte) (c >> 8);
+                    pix[x * 3 + 2] = (byte) c;
+                }
+        }
+
+        /**
+         * Outlined row of a label image.
+         * 
+         * @param edges true for the pixels on an edge, see {@link Outline}
+         * @param pix   receives the pixels of the row
+         */
+        void row(int row[], boolean edges[], byte pix[]) {
+            final int w = edges.length;
+            if (outlines == Outlines.TRANSPARENT)
+                for (int x = 0; x < w; x++) {
+                    final int c = edges[x] ? labels.rgb(row[x]) | 0xFF000000 : 0;
+                    pix[x * 4] = (byte) (c >> 16);
+                    pix[x * 4 + 1] = (byte) (c >> 8);
+                    pix[x * 4 + 2] = (byte) c;
+                    pix[x * 4 + 3] = (byte) (c >> 24);
+                }
+            else
+                for (int x = 0; x < w; x++) {
+                    final int c = edges[x] ? options.outlineColor : labels.rgb(row[x]);
+                    pix[x * 3] = (byte) (c >> 16);
+                    pix[x * 3 + 1] = (byte) (c >> 8);
+                    pix[x * 3 + 2] = (byte) c;
+                }
+        }
+
+        PngWriter writer(OutputStream os, int w, int h) throws IOException {
+            return new PngWriter(os, w, h, colorType, bitDepth,
+                    colorType == PngWriter.INDEXED ? labels.toBytes() : null, options.deflate, options.filter,
+                    options.pngPool);
+        }
+    }
+
+    /**
+     * Writes bin as a compressed Java object stream, closes os.
+     */
+    static void writeBin(OutputStream os, Object bin) throws IOException {
+        try (ObjectOutputStream oos = new ObjectOutputStream(new DeflaterOutputStream(os))) {
+            oos.writeObject(bin);
         }
     }
 
     public static void help() {
         System.out.println("Usage:");
-        System.out.println("java NIISlicer nifti=<nifti file> json=<json file> [label=<label file>] [grayscale] [bin]");
+        System.out.println("java NIISlicer nifti=<nifti file> json=<json file> [label=<label file>] [grayscale] [bin] [threads=<n>] [storage=<storage>] [preview=<size>] [width=<pixels>] [height=<pixels>] [scale=<factor>] [global[=<low>,<high>]] [raw] [t=<volumes>] [areas=<csv file>] [stream] [pipeline=<workers>] [queue=<depth>] [deflate=<level>] [filter=<filter>] [pngthreads=<n>] [indexed] [gray16] [flat] [unknown=<color>] [outline[=<mode>]] [outlinecolor=<color>] [metrics[=<json file>]] [incremental] [batch=<series>]");
         System.out.println();
         System.out.println("Where");
-        System.out.println("- <nifti file> is an uncompressed NIfTI volume");
+        System.out.println("- <nifti file> is a NIfTI volume, optionally gzip-compressed (.nii.gz)");
         System.out.println("- <json file> is a QuickNII JSON file");
         System.out.println("- <label file> is an optional ITK-compatible label file for segmentation volumes");
         System.out.println("- grayscale optionally makes each slice to use the full range of gray levels");
         System.out.println("- bin optionally outputs raw binary data as a compressed Java object stream (can be loaded in Matlab)");
+        System.out.println("- <n> is the number of threads sampling slices in parallel (default: 1)");
+        System.out.println("- <storage> is one of mapped (default), heap, direct or bricked (see BrickNII)");
+        System.out.println("- <size> optionally makes slices from downsampled volumes (see PyramidNII), at least <size> pixels long");
+        System.out.println("- width=, height= and scale= optionally set the size of the images: at most <pixels> wide and/or high, or <factor> times the full size, keeping the aspect ratio. Only the pixels of the images (and of bin) are sampled");
+        System.out.println("- global optionally makes all grayscale slices use the same range, the <low> and <high> percentiles of the whole volume (default: 0,100)");
+        System.out.println("- raw optionally makes bin output the actual voxel values at full resolution (double[][] for floating point, long[][] for INT64 volumes), it needs bin");
+        System.out.println("- <volumes> optionally slices several volumes of a 4D NIfTI file in one pass, all or a comma separated list of t indices (0-based)");
+        System.out.println("- <csv file> optionally receives the number of pixels and the area (in square micrometers) of each label in each slice");
+        System.out.println("- stream optionally encodes the images row by row while slicing, without keeping whole slices in memory");
+        System.out.println("- <workers> optionally runs the export as a pipeline, with the given number of threads sampling, colorizing, encoding and writing slices, like 4,1,4,1");
+        System.out.println("- <depth> is the number of slices the queue in front of each pipeline stage can hold (default: 4)");
+        System.out.println("- <level> is the PNG deflate level, 0-9 (default: 6), lower is faster and bigger");
+        System.out.println("- <filter> is the PNG row filter, none, sub, up, average, paeth or adaptive (default), none is fast and good for label images");
+        System.out.println("- pngthreads=<n> optionally deflates blocks of rows of each image in parallel on <n> threads");
+        System.out.println("- indexed optionally writes label images with a palette, for label files with at most 255 labels");
+        System.out.println("- gray16 optionally writes 16-bit grayscale images");
+        System.out.println("- flat optionally outputs each slice as a .flat file (see pyflat.py), with 1 or 2 bytes per pixel: label positions in the label file, gray levels, or voxel values up to 65535");
+        System.out.println("- <color> is the color of labels missing from the label file, as RRGGBB hex (default: 000000)");
+        System.out.println("- outline optionally draws the edges between labels while slicing: <mode> is transparent (default, edges in the label colors on a transparent background, RGBA images) or blend (edges in outlinecolor=<color> over the label colors, default: 000000)");
+        System.out.println("- incremental optionally exports only the slices whose anchoring, options or volumes changed since the last run, or whose outputs are missing");
+        System.out.println("- <series> optionally exports many series instead of json=, a directory of QuickNII JSON files or a text file listing them (one per line)");
+        System.out.println("- metrics optionally prints the time and throughput of each stage and slice at the end, or writes them to <json file>");
+        System.out.println();
+        System.out.println("grayscale option is implied for floating point volumes, INT64 volumes are truncated to 32 bits in images.");
+        System.out.println("Volume statistics used by global are cached next to the volume (" + VolumeStats.EXTENSION + ").");
+        System.out.println();
+        System.out.println("The pipeline prints the highest depth of each queue at the end, a stage with a full queue in front of it is a bottleneck.");
+        System.out.println("threads= still parallelizes the rows of each slice in the sample stage.");
+        System.out.println();
+        System.out.println("incremental keeps the keys of exported slices in a manifest file in the current directory, named after the json file (" + Manifest.EXTENSION + ").");
+        System.out.println();
+        System.out.println("batch opens the volume once, and samples the slices of every series on the same <n> threads.");
+        System.out.println("Outputs (and manifests) are written next to the JSON file of each series. Failing series are listed at the end, they do not stop the others.");
         System.out.println();
-        System.out.println("grayscale option is implied for floating point volumes.");
+        System.out.println("nifti= can be repeated for co-registered volumes of the same dimensions, they are sliced in a single pass.");
+        System.out.println("label= and grayscale following a nifti= apply to that volume only, otherwise they apply to every volume.");
     }
 }
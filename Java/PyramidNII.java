@@ -0,0 +1,42 @@
+import slicer.Pyramid;
+
+public class PyramidNII {
+    public static final String NIFTI = "nifti=";
+    public static final String LABELS = "labels";
+
+    public static void main(String[] args) throws Exception {
+        String nifti = null;
+        boolean labels = false;
+        for (String arg : args) {
+            if (arg.startsWith(NIFTI))
+                nifti = arg.substring(NIFTI.length());
+            else if (arg.equals(LABELS))
+                labels = true;
+            else {
+                System.err.println("Unknown argument: " + arg);
+                help();
+                return;
+            }
+        }
+        if (nifti == null) {
+            System.err.println("Missing argument: nifti=<nifti file>");
+            help();
+            return;
+        }
+        Pyramid.build(nifti, labels);
+        for (int level = 1; level <= Pyramid.LEVELS; level++)
+            System.out.println(Pyramid.levelName(nifti, 1 << level) + " created.");
+    }
+
+    public static void help() {
+        System.out.println("Usage:");
+        System.out.println("java PyramidNII nifti=<nifti file> [labels]");
+        System.out.println();
+        System.out.println("Where");
+        System.out.println("- <nifti file> is a NIfTI volume, optionally gzip-compressed");
+        System.out.println("- labels optionally uses the most frequent value instead of the mean (for segmentation volumes)");
+        System.out.println();
+        System.out.println("2x, 4x and 8x downsampled copies are created next to the volume.");
+        System.out.println("NIISlicer uses them when the preview=<size> option is given.");
+    }
+}
@@ -0,0 +1,130 @@
+package flat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The .flat slice format (see Python/pyflat.py): a byte with the number of
+ * bytes per pixel (1 or 2), width and height as big-endian 32-bit integers,
+ * then the pixels row by row, big-endian unsigned. Reading maps the file into
+ * memory.
+ */
+public class Flat {
+    public static final String EXTENSION = ".flat";
+    private static final int HEADER = 9;
+
+    public final int bytes;
+    public final int width;
+    public final int height;
+    private final ByteBuffer data;
+
+    private Flat(ByteBuffer data) throws IOException {
+        data.order(ByteOrder.BIG_ENDIAN);
+        bytes = data.get(0);
+        width = data.getInt(1);
+        height = data.getInt(5);
+        if (bytes != 1 && bytes != 2 || width < 0 || height < 0
+                || data.limit() < HEADER + (long) bytes * width * height)
+            throw new IOException("Not a .flat file, or it is truncated.");
+        this.data = data;
+    }
+
+    /**
+     * @param filename .flat file
+     * @return memory-mapped contents of the file
+     * @throws IOException when the file can not be opened or mapped, or it is not
+     *                     a .flat file
+     */
+    public static Flat map(String filename) throws IOException {
+        try (FileChannel fc = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (fc.size() < HEADER)
+                throw new IOException("Not a .flat file, or it is truncated.");
+            return new Flat(fc.map(MapMode.READ_ONLY, 0, fc.size()));
+        }
+    }
+
+    /**
+     * @return value of pixel (x, y)
+     */
+    public int get(int x, int y) {
+        final int i = HEADER + (x + y * width) * bytes;
+        return bytes == 1 ? data.get(i) & 0xFF : data.getShort(i) & 0xFFFF;
+    }
+
+    /**
+     * @return all pixels as a 2D array, [y][x]
+     */
+    public int[][] toArray() {
+        int values[][] = new int[height][width];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                values[y][x] = get(x, y);
+        return values;
+    }
+
+    /**
+     * Encodes a slice using the fewest bytes per pixel its values fit into.
+     * 
+     * @param values pixels, [y][x], 0-65535
+     * @return the complete file, ready to be written
+     * @throws IllegalArgumentException when a value does not fit into 2 bytes
+     */
+    public static ByteBuffer encode(int values[][]) {
+        final int height = values.length;
+        final int width = height > 0 ? values[0].length : 0;
+        int or = 0;
+        for (int row[] : values)
+            for (int v : row)
+                or |= v;
+        if ((or & ~0xFFFF) != 0)
+            throw new IllegalArgumentException("Values outside 0-65535 do not fit into a .flat file.");
+        final int bytes = (or & ~0xFF) != 0 ? 2 : 1;
+        ByteBuffer bb = ByteBuffer.allocate(HEADER + bytes * width * height).order(ByteOrder.BIG_ENDIAN);
+        bb.put((byte) bytes).putInt(width).putInt(height);
+        if (bytes == 1) {
+            byte row[] = new byte[width];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++)
+                    row[x] = (byte) values[y][x];
+                bb.put(row);
+            }
+        } else {
+            short row[] = new short[width];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++)
+                    row[x] = (short) values[y][x];
+                bb.asShortBuffer().put(row);
+                bb.position(bb.position() + width * 2);
+            }
+        }
+        bb.flip();
+        return bb;
+    }
+
+    /**
+     * Writes a slice, see {@link #encode(int[][])}.
+     * 
+     * @throws IOException when writing fails
+     */
+    public static void write(String filename, int values[][]) throws IOException {
+        write(filename, encode(values));
+    }
+
+    /**
+     * Writes an encoded slice.
+     * 
+     * @throws IOException when writing fails
+     */
+    public static void write(String filename, ByteBuffer flat) throws IOException {
+        try (FileChannel fc = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (flat.hasRemaining())
+                fc.write(flat);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package metrics;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Timers and counters of the stages of a run (like parsing, sampling or
+ * writing), collected per stage and per item (typically a slice). Stages may
+ * run on several threads at once, their times are summed, so a stage can take
+ * longer than the whole run. Items get the sum of their stage times, their
+ * largest pixel count, and the bytes of their output stages (like
+ * {@link #WRITE}), which also give the total throughput.
+ * <p>
+ * Usage: {@code long t = metrics.start(); ...; metrics.add("stage", "item", t,
+ * pixels, bytes);}
+ */
+public class Metrics {
+    public static final String WRITE = "write";
+
+    private final long created = System.nanoTime();
+    private final List<String> outputs;
+    private final Map<String, Stat> stages = new LinkedHashMap<>();
+    private final Map<String, Stat> items = new LinkedHashMap<>();
+
+    private static class Stat {
+        long count;
+        long nanos;
+        long pixels;
+        long bytes;
+    }
+
+    /**
+     * @param outputs names of the stages whose bytes are the output of the run
+     */
+    public Metrics(String... outputs) {
+        this.outputs = Arrays.asList(outputs);
+    }
+
+    /**
+     * @return true when nothing has been recorded
+     */
+    public synchronized boolean isEmpty() {
+        return stages.isEmpty();
+    }
+
+    /**
+     * @return timestamp for {@link #add}
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a finished step.
+     * 
+     * @param stage  name of the stage, the order of first appearance is kept
+     * @param item   name of the item the step worked on, null if none
+     * @param start  value of {@link #start()} when the step began
+     * @param pixels pixels processed, 0 if not applicable
+     * @param bytes  bytes read, produced or written, 0 if not applicable
+     */
+    public void add(String stage, String item, long start, long pixels, long bytes) {
+        final long nanos = System.nanoTime() - start;
+        synchronized (this) {
+            Stat s = stages.computeIfAbsent(stage, k -> new Stat());
+            s.count++;
+            s.nanos += nanos;
+            s.pixels += pixels;
+            s.bytes += bytes;
+            if (item != null) {
+                Stat i = items.computeIfAbsent(item, k -> new Stat());
+                i.count++;
+                i.nanos += nanos;
+                i.pixels = Math.max(i.pixels, pixels);
+                if (outputs.contains(stage))
+                    i.bytes += bytes;
+            }
+        }
+    }
+
+    /**
+     * Prints the stages, the items and the totals as a table.
+     */
+    public synchronized void printTable(PrintStream ps) {
+        final double wall = (System.nanoTime() - created) / 1e9;
+        ps.println(String.format(Locale.ROOT, "%-24s %8s %12s %12s %12s %10s", "stage", "count", "total ms",
+                "ms/count", "Mpixel/s", "MB/s"));
+        for (Map.Entry<String, Stat> e : stages.entrySet())
+            row(ps, e.getKey(), e.getValue());
+        if (!items.isEmpty()) {
+            ps.println();
+            ps.println(String.format(Locale.ROOT, "%-24s %8s %12s %12s %12s %10s", "item", "steps", "total ms",
+                    "ms/step", "Mpixel/s", "MB/s"));
+            for (Map.Entry<String, Stat> e : items.entrySet())
+                row(ps, e.getKey(), e.getValue());
+        }
+        final long total[] = totals();
+        ps.println();
+        ps.println(String.format(Locale.ROOT, "wall time %.3f s, %d items, %.3f Mpixel/s, %.3f MB/s written", wall,
+                items.size(), total[0] / wall / 1e6, total[1] / wall / 1e6));
+    }
+
+    /**
+     * Writes the stages, the items and the totals as JSON.
+     * 
+     * @throws IOException when writing fails
+     */
+    public synchronized void writeJson(String filename) throws IOException {
+        final double wall = (System.nanoTime() - created) / 1e9;
+        final long total[] = totals();
+        try (PrintStream ps = new PrintStream(filename, "UTF-8")) {
+            ps.println("{");
+            ps.println("  \"seconds\": " + wall + ",");
+            ps.println("  \"pixels\": " + total[0] + ",");
+            ps.println("  \"bytes\": " + total[1] + ",");
+            ps.println("  \"pixelsPerSecond\": " + total[0] / wall + ",");
+            ps.println("  \"bytesPerSecond\": " + total[1] / wall + ",");
+            ps.println("  \"stages\": " + json(stages) + ",");
+            ps.println("  \"items\": " + json(items));
+            ps.println("}");
+        }
+    }
+
+    /**
+     * @return pixels of all items, bytes of the output stages
+     */
+    private long[] totals() {
+        long total[] = new long[2];
+        for (Stat i : items.values())
+            total[0] += i.pixels;
+        for (String output : outputs) {
+            Stat s = stages.get(output);
+            if (s != null)
+                total[1] += s.bytes;
+        }
+        return total;
+    }
+
+    private static void row(PrintStream ps, String name, Stat s) {
+        final double ms = s.nanos / 1e6;
+        ps.println(String.format(Locale.ROOT, "%-24s %8d %12.3f %12.3f %12s %10s", name, s.count, ms, ms / s.count,
+                s.pixels > 0 && s.nanos > 0 ? String.format(Locale.ROOT, "%.3f", s.pixels * 1e3 / s.nanos) : "",
+                s.bytes > 0 && s.nanos > 0 ? String.format(Locale.ROOT, "%.3f", s.bytes * 1e3 / s.nanos) : ""));
+    }
+
+    private static String json(Map<String, Stat> stats) {
+        List<String> entries = new ArrayList<>();
+        for (Map.Entry<String, Stat> e : stats.entrySet()) {
+            final Stat s = e.getValue();
+            final double seconds = s.nanos / 1e9;
+            entries.add("    {\"name\": \"" + e.getKey().replace("\\", "\\\\").replace("\"", "\\\"")
+                    + "\", \"count\": " + s.count + ", \"seconds\": " + seconds + ", \"pixels\": " + s.pixels
+                    + ", \"bytes\": " + s.bytes + ", \"pixelsPerSecond\": " + (seconds > 0 ? s.pixels / seconds : 0)
+                    + ", \"bytesPerSecond\": " + (seconds > 0 ? s.bytes / seconds : 0) + "}");
+        }
+        return entries.isEmpty() ? "[]" : "[\n" + String.join(",\n", entries) + "\n  ]";
+    }
+}
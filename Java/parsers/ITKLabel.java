@@ -2,6 +2,7 @@ package parsers;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -38,4 +39,96 @@ public class ITKLabel {
         }
         return palette;
     }
+
+    /**
+     * Label colors compiled for per-pixel lookups without boxing or hashing.
+     * Labels are numbered in the order of the map (the order of the label file),
+     * IDs are mapped to these positions by a dense table up to {@link #DENSE},
+     * larger or negative IDs are binary searched. Unknown IDs get position
+     * {@link #size}, which has the default color.
+     */
+    public static class Palette {
+        public static final int DENSE = 1 << 20;
+
+        /**
+         * number of labels, also the position of unknown IDs
+         */
+        public final int size;
+        private final int lut[];
+        private final int ids[];
+        private final int positions[];
+        private final int colors[];
+
+        /**
+         * @param labels  labels, usually from {@link ITKLabel#parseLabels(String)}
+         * @param unknown color of unknown IDs, as 0xRRGGBB
+         */
+        public Palette(Map<Integer, ITKLabel> labels, int unknown) {
+            size = labels.size();
+            colors = new int[size + 1];
+            colors[size] = unknown & 0xFFFFFF;
+            int max = -1;
+            int sparse = 0;
+            for (int id : labels.keySet())
+                if (id >= 0 && id < DENSE)
+                    max = Math.max(max, id);
+                else
+                    sparse++;
+            lut = new int[max + 1];
+            Arrays.fill(lut, size);
+            ids = new int[sparse];
+            positions = new int[sparse];
+            long order[] = new long[sparse];
+            int i = 0;
+            sparse = 0;
+            for (Map.Entry<Integer, ITKLabel> e : labels.entrySet()) {
+                final int id = e.getKey();
+                final ITKLabel l = e.getValue();
+                colors[i] = (l.red & 0xFF) << 16 | (l.green & 0xFF) << 8 | l.blue & 0xFF;
+                if (id >= 0 && id < DENSE)
+                    lut[id] = i;
+                else
+                    order[sparse++] = (long) id << 32 | i;
+                i++;
+            }
+            Arrays.sort(order);
+            for (i = 0; i < order.length; i++) {
+                ids[i] = (int) (order[i] >> 32);
+                positions[i] = (int) order[i];
+            }
+        }
+
+        /**
+         * @return position of the label in the map, {@link #size} for unknown IDs
+         */
+        public int index(int id) {
+            if (id >= 0 && id < lut.length)
+                return lut[id];
+            if (ids.length == 0)
+                return size;
+            final int i = Arrays.binarySearch(ids, id);
+            return i >= 0 ? positions[i] : size;
+        }
+
+        /**
+         * @return color of the label as 0xRRGGBB, the default color for unknown IDs
+         */
+        public int rgb(int id) {
+            return colors[index(id)];
+        }
+
+        /**
+         * @return R, G, B bytes of the labels in order, followed by the default
+         *         color
+         */
+        public byte[] toBytes() {
+            byte bytes[] = new byte[colors.length * 3];
+            for (int i = 0; i < colors.length; i++) {
+                bytes[i * 3] = (byte) (colors[i] >> 16);
+                bytes[i * 3 + 1] = (byte) (colors[i] >> 8);
+                bytes[i * 3 + 2] = (byte) colors[i];
+            }
+            return bytes;
+        }
+    }
 }
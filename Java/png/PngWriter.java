@@ -0,0 +1,344 @@
+package png;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * PNG encoder consuming the image one row at a time, only the current and the
+ * previous row are kept in memory. Rows are filtered either with a fixed filter
+ * or adaptively (the filter with the smallest sum of absolute differences is
+ * picked for each row, like most encoders do), then deflated into a sequence of
+ * IDAT chunks.
+ * <p>
+ * With a pool, filtered rows are collected into blocks of about {@value #BLOCK}
+ * bytes, which are deflated in parallel as independent parts of the same zlib
+ * stream. Blocks do not share their history, this costs a little compression for
+ * large images. The pool can be shared by many images, so threads are started
+ * once per run, not once per image.
+ */
+public class PngWriter implements Closeable {
+    public static final int GRAY = 0;
+    public static final int RGB = 2;
+    public static final int INDEXED = 3;
+    public static final int RGBA = 6;
+
+    /**
+     * Row filters, ADAPTIVE picks one of the others for each row. NONE is usually
+     * the fastest and the best for label (indexed) images.
+     */
+    public enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE
+    }
+
+    private static final byte SIGNATURE[] = { (byte) 137, 'P', 'N', 'G', 13, 10, 26, 10 };
+    private static final int CHUNK = 1 << 16;
+    private static final int BLOCK = 1 << 18;
+
+    public final int width;
+    public final int height;
+    public final int colorType;
+    public final int bitDepth;
+
+    private final DataOutputStream out;
+    private final int level;
+    private final Filter filter;
+    private final Deflater deflater;
+    private final DeflaterOutputStream idat;
+    private final ForkJoinPool pool;
+    private final int window;
+    private final Deque<Future<byte[]>> blocks = new ArrayDeque<>();
+    private final OutputStream chunks;
+    private final Adler32 adler = new Adler32();
+    private byte block[];
+    private int blockLength;
+    private final int bpp;
+    private byte previous[];
+    private byte current[];
+    private final byte filtered[][] = new byte[5][];
+    private int rows;
+
+    /**
+     * Writes the header of the image.
+     * 
+     * @param out       destination, closed by {@link #close()}
+     * @param width     width of the image in pixels
+     * @param height    height of the image in pixels
+     * @param colorType {@link #GRAY} or {@link #RGB}
+     * @param bitDepth  bits per sample, 8 or 16
+     * @throws IOException when writing fails
+     */
+    public PngWriter(OutputStream out, int width, int height, int colorType, int bitDepth) throws IOException {
+        this(out, width, height, colorType, bitDepth, null, Deflater.DEFAULT_COMPRESSION, Filter.ADAPTIVE, null);
+    }
+
+    /**
+     * Writes the header of the image, and the palette of indexed images.
+     * 
+     * @param out       destination, closed by {@link #close()}
+     * @param width     width of the image in pixels
+     * @param height    height of the image in pixels
+     * @param colorType {@link #GRAY}, {@link #RGB}, {@link #INDEXED} or
+     *                  {@link #RGBA}
+     * @param bitDepth  bits per sample, 8 or 16, indexed images are 8-bit
+     * @param palette   R, G, B bytes of at most 256 colors for indexed images,
+     *                  null otherwise
+     * @param level     deflate level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param filter    row filter
+     * @param pool      threads deflating blocks of rows in parallel, it is not shut
+     *                  down by the writer. null deflates on the calling thread
+     * @throws IOException when writing fails
+     */
+    public PngWriter(OutputStream out, int width, int height, int colorType, int bitDepth, byte palette[], int level,
+            Filter filter, ForkJoinPool pool) throws IOException {
+        if (colorType != GRAY && colorType != RGB && colorType != INDEXED && colorType != RGBA
+                || bitDepth != 8 && bitDepth != 16 || colorType == INDEXED && bitDepth != 8)
+            throw new IllegalArgumentException("Unsupported color type " + colorType + " / bit depth " + bitDepth);
+        if ((colorType == INDEXED) != (palette != null)
+                || palette != null && (palette.length % 3 != 0 || palette.length == 0 || palette.length > 768))
+            throw new IllegalArgumentException("Indexed images need a palette of 1-256 R, G, B triplets.");
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.colorType = colorType;
+        this.bitDepth = bitDepth;
+        this.level = level;
+        this.filter = filter;
+        bpp = (colorType == RGB ? 3 : colorType == RGBA ? 4 : 1) * bitDepth / 8;
+        previous = new byte[width * bpp];
+        current = new byte[width * bpp];
+        for (int i = 0; i < filtered.length; i++)
+            filtered[i] = new byte[width * bpp + 1];
+        this.out.write(SIGNATURE);
+        byte ihdr[] = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = (byte) bitDepth;
+        ihdr[9] = (byte) colorType;
+        chunk("IHDR", ihdr, 0, ihdr.length);
+        if (palette != null)
+            chunk("PLTE", palette, 0, palette.length);
+        this.pool = pool;
+        if (pool == null) {
+            deflater = new Deflater(level);
+            idat = new DeflaterOutputStream(new ChunkStream(), deflater, CHUNK);
+            window = 0;
+            chunks = null;
+        } else {
+            deflater = null;
+            idat = null;
+            window = pool.getParallelism() * 2;
+            chunks = new BufferedOutputStream(new ChunkStream(), CHUNK);
+            final int flevel = level < 0 || level == 6 ? 2 : level < 2 ? 0 : level < 6 ? 1 : 3;
+            final int cmf = 0x78;
+            final int flg = (flevel << 6) + 31 - ((cmf << 8) + (flevel << 6)) % 31;
+            chunks.write(cmf);
+            chunks.write(flg);
+            block = new byte[Math.max(1, BLOCK / (width * bpp + 1)) * (width * bpp + 1)];
+        }
+    }
+
+    /**
+     * @param row samples of the next row, width * channels bytes, 16-bit samples
+     *            are big-endian. The array is not retained
+     * @throws IOException when writing fails
+     */
+    public void writeRow(byte row[]) throws IOException {
+        if (rows == height)
+            throw new IllegalStateException("All rows have been written.");
+        System.arraycopy(row, 0, current, 0, current.length);
+        final byte f[] = filter();
+        if (pool == null)
+            idat.write(f);
+        else {
+            System.arraycopy(f, 0, block, blockLength, f.length);
+            blockLength += f.length;
+            if (blockLength == block.length)
+                flush(false);
+        }
+        byte swap[] = previous;
+        previous = current;
+        current = swap;
+        rows++;
+    }
+
+    /**
+     * Finishes the image and closes the underlying stream.
+     * 
+     * @throws IOException when writing fails, or not all rows were written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (pool == null)
+                idat.finish();
+            else {
+                flush(true);
+                while (!blocks.isEmpty())
+                    chunks.write(take());
+                final int checksum = (int) adler.getValue();
+                for (int shift = 24; shift >= 0; shift -= 8)
+                    chunks.write(checksum >> shift);
+                chunks.flush();
+            }
+            chunk("IEND", new byte[0], 0, 0);
+            if (rows != height)
+                throw new IOException("Image is incomplete, " + rows + " of " + height + " rows were written.");
+        } finally {
+            if (pool == null)
+                deflater.end();
+            else
+                for (Future<byte[]> f : blocks)
+                    f.cancel(false);
+            out.close();
+        }
+    }
+
+    /**
+     * Hands the current block over to the pool, writes finished blocks while too
+     * many are in flight.
+     */
+    private void flush(boolean last) throws IOException {
+        final byte data[] = block;
+        final int length = blockLength;
+        adler.update(data, 0, length);
+        blocks.add(pool.submit(() -> deflate(data, length, level, last)));
+        block = last ? null : new byte[block.length];
+        blockLength = 0;
+        while (blocks.size() > window)
+            chunks.write(take());
+    }
+
+    private byte[] take() throws IOException {
+        try {
+            return blocks.poll().get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Deflating failed", e);
+        }
+    }
+
+    /**
+     * @return raw deflate data of the block, ending on a byte boundary (sync
+     *         flush) so the next block can follow, or ending the stream for the
+     *         last block
+     */
+    private static byte[] deflate(byte data[], int length, int level, boolean last) {
+        Deflater d = new Deflater(level, true);
+        try {
+            d.setInput(data, 0, length);
+            if (last)
+                d.finish();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(length / 2 + 64);
+            byte buffer[] = new byte[CHUNK];
+            for (;;) {
+                final int n = d.deflate(buffer, 0, buffer.length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                baos.write(buffer, 0, n);
+                if (last ? d.finished() : n < buffer.length)
+                    return baos.toByteArray();
+            }
+        } finally {
+            d.end();
+        }
+    }
+
+    /**
+     * @return filter type followed by the filtered row
+     */
+    private byte[] filter() {
+        final int length = current.length;
+        byte best[] = null;
+        long bestsum = Long.MAX_VALUE;
+        final int from = filter == Filter.ADAPTIVE ? 0 : filter.ordinal();
+        final int to = filter == Filter.ADAPTIVE ? filtered.length - 1 : filter.ordinal();
+        for (int type = from; type <= to; type++) {
+            final byte f[] = filtered[type];
+            f[0] = (byte) type;
+            long sum = 0;
+            for (int i = 0; i < length; i++) {
+                final int x = current[i] & 0xFF;
+                final int a = i >= bpp ? current[i - bpp] & 0xFF : 0;
+                final int b = previous[i] & 0xFF;
+                final int c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+                int p;
+                switch (type) {
+                case 0:
+                    p = 0;
+                    break;
+                case 1:
+                    p = a;
+                    break;
+                case 2:
+                    p = b;
+                    break;
+                case 3:
+                    p = (a + b) >> 1;
+                    break;
+                default:
+                    p = paeth(a, b, c);
+                }
+                final byte v = (byte) (x - p);
+                f[i + 1] = v;
+                sum += Math.abs(v);
+            }
+            if (sum < bestsum) {
+                bestsum = sum;
+                best = f;
+            }
+        }
+        return best;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        final int p = a + b - c;
+        final int pa = Math.abs(p - a);
+        final int pb = Math.abs(p - b);
+        final int pc = Math.abs(p - c);
+        return pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+    }
+
+    private void chunk(String type, byte data[], int offset, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        byte name[] = type.getBytes("US-ASCII");
+        crc.update(name);
+        crc.update(data, offset, length);
+        out.writeInt(length);
+        out.write(name);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte array[], int pos, int value) {
+        array[pos] = (byte) (value >> 24);
+        array[pos + 1] = (byte) (value >> 16);
+        array[pos + 2] = (byte) (value >> 8);
+        array[pos + 3] = (byte) value;
+    }
+
+    /**
+     * Wraps the output of the deflater into IDAT chunks.
+     */
+    private class ChunkStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte b[], int off, int len) throws IOException {
+            if (len > 0)
+                chunk("IDAT", b, off, len);
+        }
+    }
+}
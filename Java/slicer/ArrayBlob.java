@@ -0,0 +1,217 @@
+package slicer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+import nii.Nifti1Dataset;
+
+/**
+ * Copy of a NIfTI data blob in a primitive Java array matching the datatype
+ * ({@code byte[]}, {@code short[]}, {@code int[]}, {@code float[]},
+ * {@code long[]} or {@code double[]}). Only the
+ * accessor of the matching size is supported, the others throw
+ * {@link UnsupportedOperationException}.
+ */
+public abstract class ArrayBlob implements VoxelSource {
+    private static final int CHUNK = 1 << 24;
+
+    @Override
+    public byte getByte(long index) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short getShort(long index) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getInt(long index) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getLong(long index) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Reads a blob from a file, gzip-compressed files (.gz) are inflated.
+     * 
+     * @param filename  path and filename to the file containing the blob
+     * @param offset    position of the first byte of the blob in the
+     *                  (decompressed) file
+     * @param type      NIfTI datatype of the voxels
+     * @param voxels    number of voxels
+     * @param bigendian byte order of multi-byte values
+     * @return the blob
+     * @throws IOException when a file operation fails, the file is too short, or
+     *                     the volume does not fit into a Java array
+     */
+    public static ArrayBlob read(String filename, long offset, short type, long voxels, boolean bigendian)
+            throws IOException {
+        final long count = type == Nifti1Dataset.NIFTI_TYPE_RGB24 ? voxels * 3 : voxels;
+        if (count > Integer.MAX_VALUE - 8)
+            throw new IOException("Volume is too large for a Java array.");
+        try (ReadableByteChannel fc = Blobs.open(filename, offset)) {
+            ByteBuffer bb = ByteBuffer.allocate(CHUNK).order(bigendian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            switch (type) {
+            case Nifti1Dataset.NIFTI_TYPE_INT8:
+            case Nifti1Dataset.NIFTI_TYPE_UINT8:
+            case Nifti1Dataset.NIFTI_TYPE_RGB24: {
+                byte array[] = new byte[(int) count];
+                for (int pos = 0; pos < array.length;) {
+                    int len = fill(fc, bb, array.length - pos, 1);
+                    bb.get(array, pos, len);
+                    pos += len;
+                }
+                return new Bytes(array);
+            }
+            case Nifti1Dataset.NIFTI_TYPE_INT16:
+            case Nifti1Dataset.NIFTI_TYPE_UINT16: {
+                short array[] = new short[(int) count];
+                for (int pos = 0; pos < array.length;) {
+                    int len = fill(fc, bb, array.length - pos, 2);
+                    bb.asShortBuffer().get(array, pos, len);
+                    pos += len;
+                }
+                return new Shorts(array);
+            }
+            case Nifti1Dataset.NIFTI_TYPE_INT32:
+            case Nifti1Dataset.NIFTI_TYPE_UINT32: {
+                int array[] = new int[(int) count];
+                for (int pos = 0; pos < array.length;) {
+                    int len = fill(fc, bb, array.length - pos, 4);
+                    bb.asIntBuffer().get(array, pos, len);
+                    pos += len;
+                }
+                return new Ints(array);
+            }
+            case Nifti1Dataset.NIFTI_TYPE_FLOAT32: {
+                float array[] = new float[(int) count];
+                for (int pos = 0; pos < array.length;) {
+                    int len = fill(fc, bb, array.length - pos, 4);
+                    bb.asFloatBuffer().get(array, pos, len);
+                    pos += len;
+                }
+                return new Floats(array);
+            }
+            case Nifti1Dataset.NIFTI_TYPE_INT64: {
+                long array[] = new long[(int) count];
+                for (int pos = 0; pos < array.length;) {
+                    int len = fill(fc, bb, array.length - pos, 8);
+                    bb.asLongBuffer().get(array, pos, len);
+                    pos += len;
+                }
+                return new Longs(array);
+            }
+            case Nifti1Dataset.NIFTI_TYPE_FLOAT64: {
+                double array[] = new double[(int) count];
+                for (int pos = 0; pos < array.length;) {
+                    int len = fill(fc, bb, array.length - pos, 8);
+                    bb.asDoubleBuffer().get(array, pos, len);
+                    pos += len;
+                }
+                return new Doubles(array);
+            }
+            default:
+                throw new IOException(Nifti1Dataset.decodeDatatype(type) + " is not supported.");
+            }
+        }
+    }
+
+    /**
+     * Reads the next chunk of values into bb.
+     * 
+     * @return number of values available in bb
+     */
+    private static int fill(ReadableByteChannel fc, ByteBuffer bb, int remaining, int size) throws IOException {
+        bb.clear();
+        bb.limit((int) Math.min(bb.capacity(), (long) remaining * size));
+        while (bb.hasRemaining())
+            if (fc.read(bb) < 0)
+                throw new IOException("Voxel data is truncated.");
+        bb.flip();
+        return bb.limit() / size;
+    }
+
+    public static final class Bytes extends ArrayBlob {
+        public final byte array[];
+
+        public Bytes(byte array[]) {
+            this.array = array;
+        }
+
+        @Override
+        public byte getByte(long index) {
+            return array[(int) index];
+        }
+    }
+
+    public static final class Shorts extends ArrayBlob {
+        public final short array[];
+
+        public Shorts(short array[]) {
+            this.array = array;
+        }
+
+        @Override
+        public short getShort(long index) {
+            return array[(int) index];
+        }
+    }
+
+    public static final class Ints extends ArrayBlob {
+        public final int array[];
+
+        public Ints(int array[]) {
+            this.array = array;
+        }
+
+        @Override
+        public int getInt(long index) {
+            return array[(int) index];
+        }
+    }
+
+    public static final class Floats extends ArrayBlob {
+        public final float array[];
+
+        public Floats(float array[]) {
+            this.array = array;
+        }
+
+        @Override
+        public int getInt(long index) {
+            return Float.floatToRawIntBits(array[(int) index]);
+        }
+    }
+
+    public static final class Longs extends ArrayBlob {
+        public final long array[];
+
+        public Longs(long array[]) {
+            this.array = array;
+        }
+
+        @Override
+        public long getLong(long index) {
+            return array[(int) index];
+        }
+    }
+
+    public static final class Doubles extends ArrayBlob {
+        public final double array[];
+
+        public Doubles(double array[]) {
+            this.array = array;
+        }
+
+        @Override
+        public long getLong(long index) {
+            return Double.doubleToRawLongBits(array[(int) index]);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package slicer;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+import nii.Nifti1Dataset;
+
+final class Blobs {
+    private Blobs() {
+    }
+
+    /**
+     * @param filename path and filename to a data blob
+     * @return true for gzip-compressed files (.gz)
+     */
+    static boolean compressed(String filename) {
+        return filename.endsWith(Nifti1Dataset.GZIP_EXT);
+    }
+
+    /**
+     * Opens a data blob for sequential reading, compressed files are inflated on
+     * the fly.
+     * 
+     * @param filename path and filename to the file containing the blob
+     * @param offset   position of the first byte of the blob in the (decompressed)
+     *                 file
+     * @return channel positioned at the first byte of the blob
+     * @throws IOException when the file can not be opened, or it is shorter than
+     *                     offset
+     */
+    static ReadableByteChannel open(String filename, long offset) throws IOException {
+        if (!compressed(filename)) {
+            FileChannel fc = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+            fc.position(offset);
+            return fc;
+        }
+        InputStream is = new GZIPInputStream(new FileInputStream(filename), 65536);
+        try {
+            while (offset > 0) {
+                long skipped = is.skip(offset);
+                if (skipped <= 0)
+                    throw new EOFException(filename);
+                offset -= skipped;
+            }
+        } catch (IOException e) {
+            is.close();
+            throw e;
+        }
+        return Channels.newChannel(is);
+    }
+}
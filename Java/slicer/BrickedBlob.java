@@ -0,0 +1,270 @@
+package slicer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import nii.Nifti1Dataset;
+
+/**
+ * Voxel data stored in cubic bricks in a sidecar file next to the NIfTI data
+ * blob, see {@link #write(Nifti1Dataset, int)} and {@link Layout#bricked}.
+ * Oblique slices touch far fewer bricks than x-major lines, so the cost of
+ * sampling does not depend much on the angle of the cut. Bricks are read on
+ * demand with positional reads and kept in a cache of limited size, evicting
+ * the least recently used bricks using the clock approximation. The open
+ * instances share a quarter of the maximum heap size for their caches, each one
+ * gets an equal part of it.
+ */
+public class BrickedBlob implements VoxelSource {
+    public static final String EXTENSION = ".bricks";
+    private static final byte MAGIC[] = { 'B', 'R', 'K', '0' };
+    private static final int HEADER = 64;
+    private static final long CACHE_BYTES = Runtime.getRuntime().maxMemory() / 4;
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    public final int bits;
+    public final int XDIM;
+    public final int YDIM;
+    public final int ZDIM;
+    public final int TDIM;
+    public final short type;
+
+    private final FileChannel fc;
+    private final ByteOrder order;
+    private final int brickBytes;
+    private final int brickShift;
+    private final AtomicReferenceArray<ByteBuffer> bricks;
+    private final boolean referenced[];
+    private int loaded;
+    private int hand;
+    private boolean closed;
+
+    /**
+     * Opens the sidecar of a data blob. The file stays open until
+     * {@link #close()}.
+     * 
+     * @param blob path and filename to the NIfTI data blob
+     * @throws IOException when the sidecar can not be read, or it was not made
+     *                     from the current version of the blob
+     */
+    public BrickedBlob(String blob) throws IOException {
+        Path path = Paths.get(blob);
+        fc = FileChannel.open(Paths.get(blob + EXTENSION), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            readFully(header, 0);
+            header.flip();
+            byte magic[] = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException(blob + EXTENSION + " is not a brick file.");
+            bits = header.getInt();
+            XDIM = header.getInt();
+            YDIM = header.getInt();
+            ZDIM = header.getInt();
+            type = header.getShort();
+            order = header.get() != 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            header.get();
+            if (header.getLong() != Files.size(path)
+                    || header.getLong() != Files.getLastModifiedTime(path).toMillis())
+                throw new IOException(blob + EXTENSION + " is out of date.");
+            TDIM = Math.max(1, header.getInt());
+        } catch (IOException e) {
+            fc.close();
+            throw e;
+        }
+        final int bpv = Nifti1Dataset.bytesPerVoxel(type);
+        brickBytes = bpv << (3 * bits);
+        brickShift = Integer.bitCount(brickBytes) == 1 ? Integer.numberOfTrailingZeros(brickBytes) : -1;
+        final int mask = (1 << bits) - 1;
+        final int count = ((XDIM + mask) >> bits) * ((YDIM + mask) >> bits) * ((ZDIM + mask) >> bits) * TDIM;
+        bricks = new AtomicReferenceArray<>(count);
+        referenced = new boolean[count];
+        instances.incrementAndGet();
+    }
+
+    /**
+     * @return number of bricks this instance may cache, its share of the budget
+     *         of the open instances
+     */
+    private int capacity() {
+        final long share = CACHE_BYTES / Math.max(1, instances.get());
+        return (int) Math.max(1, Math.min(referenced.length, share / brickBytes));
+    }
+
+    @Override
+    public Layout layout(int XDIM, int YDIM, int ZDIM) {
+        if (XDIM != this.XDIM || YDIM != this.YDIM || ZDIM != this.ZDIM)
+            throw new IllegalArgumentException("Brick file has different dimensions.");
+        return Layout.bricked(XDIM, YDIM, ZDIM, bits);
+    }
+
+    @Override
+    public byte getByte(long index) {
+        final long brick = brickShift >= 0 ? index >>> brickShift : index / brickBytes;
+        return brick((int) brick).get((int) (index - brick * brickBytes));
+    }
+
+    @Override
+    public short getShort(long index) {
+        final long pos = index << 1;
+        final long brick = pos >>> brickShift;
+        return brick((int) brick).getShort((int) (pos - brick * brickBytes));
+    }
+
+    @Override
+    public int getInt(long index) {
+        final long pos = index << 2;
+        final long brick = pos >>> brickShift;
+        return brick((int) brick).getInt((int) (pos - brick * brickBytes));
+    }
+
+    @Override
+    public long getLong(long index) {
+        final long pos = index << 3;
+        final long brick = pos >>> brickShift;
+        return brick((int) brick).getLong((int) (pos - brick * brickBytes));
+    }
+
+    private ByteBuffer brick(int brick) {
+        ByteBuffer bb = bricks.get(brick);
+        if (bb == null)
+            bb = load(brick);
+        referenced[brick] = true;
+        return bb;
+    }
+
+    private synchronized ByteBuffer load(int brick) {
+        ByteBuffer bb = bricks.get(brick);
+        if (bb != null)
+            return bb;
+        if (closed)
+            throw new IllegalStateException("Brick file is closed.");
+        final int capacity = capacity();
+        while (loaded >= capacity) {
+            if (bricks.get(hand) != null) {
+                if (referenced[hand])
+                    referenced[hand] = false;
+                else {
+                    bricks.set(hand, null);
+                    loaded--;
+                }
+            }
+            hand = (hand + 1) % referenced.length;
+        }
+        bb = ByteBuffer.allocate(brickBytes).order(order);
+        try {
+            readFully(bb, HEADER + (long) brick * brickBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        bricks.set(brick, bb);
+        loaded++;
+        return bb;
+    }
+
+    /**
+     * Closes the sidecar and drops the cached bricks, the remaining instances
+     * share the cache budget.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        instances.decrementAndGet();
+        for (int i = 0; i < referenced.length; i++)
+            bricks.set(i, null);
+        loaded = 0;
+        fc.close();
+    }
+
+    private void readFully(ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining()) {
+            int read = fc.read(bb, position);
+            if (read < 0)
+                throw new IOException("Brick file is truncated.");
+            position += read;
+        }
+    }
+
+    /**
+     * Creates the brick sidecar ({@code ds_datname + EXTENSION}) of a NIfTI
+     * volume. The blob is read sequentially and processed one layer of bricks at
+     * a time, so compressed volumes are supported too. The volumes of 4D datasets
+     * are bricked one after the other.
+     * 
+     * @param header header of the volume, as read by
+     *               {@link Nifti1Dataset#readHeader()}
+     * @param bits   edge of the bricks is {@code 1 << bits}, 5 (32 voxels) is a
+     *               good default
+     * @throws IOException when a file operation fails, or the volume is not
+     *                     supported
+     */
+    public static void write(Nifti1Dataset header, int bits) throws IOException {
+        final String blob = header.ds_datname;
+        final int bpv = Nifti1Dataset.bytesPerVoxel(header.datatype);
+        if (bpv == 0 || bpv > 8)
+            throw new IOException(Nifti1Dataset.decodeDatatype(header.datatype) + " is not supported.");
+        final int edge = 1 << bits;
+        final int XDIM = header.XDIM;
+        final int YDIM = header.YDIM;
+        final int ZDIM = header.ZDIM;
+        final int TDIM = Math.max(1, (int) header.TDIM);
+        final long xline = (long) XDIM * bpv;
+        final long zslice = xline * YDIM;
+        if (zslice * edge > Integer.MAX_VALUE)
+            throw new IOException("Layer of bricks does not fit into memory, use smaller bricks.");
+        final Path path = Paths.get(blob);
+        try (ReadableByteChannel in = Blobs.open(blob, (long) header.vox_offset);
+                FileChannel out = FileChannel.open(Paths.get(blob + EXTENSION), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bb = ByteBuffer.allocate(HEADER);
+            bb.put(MAGIC).putInt(bits).putInt(XDIM).putInt(YDIM).putInt(ZDIM).putShort(header.datatype)
+                    .put((byte) (header.big_endian ? 1 : 0)).put((byte) 0).putLong(Files.size(path))
+                    .putLong(Files.getLastModifiedTime(path).toMillis()).putInt(TDIM);
+            bb.clear();
+            while (bb.hasRemaining())
+                out.write(bb);
+
+            ByteBuffer layer = ByteBuffer.allocate((int) (zslice * edge));
+            ByteBuffer brick = ByteBuffer.allocate(bpv << (3 * bits));
+            final byte src[] = layer.array();
+            final byte dst[] = brick.array();
+            for (int t = 0; t < TDIM; t++)
+                for (int bz = 0; bz < ZDIM; bz += edge) {
+                    final int nz = Math.min(edge, ZDIM - bz);
+                    layer.clear();
+                    layer.limit((int) (zslice * nz));
+                    while (layer.hasRemaining())
+                        if (in.read(layer) < 0)
+                            throw new IOException("Voxel data is truncated.");
+                    for (int by = 0; by < YDIM; by += edge) {
+                        final int ny = Math.min(edge, YDIM - by);
+                        for (int bx = 0; bx < XDIM; bx += edge) {
+                            final int nx = Math.min(edge, XDIM - bx);
+                            Arrays.fill(dst, (byte) 0);
+                            for (int z = 0; z < nz; z++)
+                                for (int y = 0; y < ny; y++)
+                                    System.arraycopy(src, (int) (z * zslice + (by + y) * xline + bx * bpv), dst,
+                                            (((z << bits) + y) << bits) * bpv, nx * bpv);
+                            brick.clear();
+                            while (brick.hasRemaining())
+                                out.write(brick);
+                        }
+                    }
+                }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package slicer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link VoxelSource} backed by a sequence of 1 GB {@link ByteBuffer} segments,
+ * so blobs larger than what a single buffer can address are supported. All
+ * accessors use absolute gets.
+ */
+public class BufferBlob implements VoxelSource {
+    static final int SEGMENT_BITS = 30;
+    static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private final ByteBuffer segments[];
+    public final long length;
+
+    /**
+     * @param segments buffers with their byte order already set, each of them
+     *                 has to be 1 GB long except for the last one
+     */
+    protected BufferBlob(ByteBuffer segments[]) {
+        this.segments = segments;
+        long length = 0;
+        for (ByteBuffer segment : segments)
+            length += segment.limit();
+        this.length = length;
+    }
+
+    static int segmentCount(long length) {
+        return (int) ((length + SEGMENT_MASK) >>> SEGMENT_BITS);
+    }
+
+    static int segmentLength(long length, int segment) {
+        return (int) Math.min(SEGMENT_MASK + 1, length - ((long) segment << SEGMENT_BITS));
+    }
+
+    @Override
+    public final byte getByte(long index) {
+        return segments[(int) (index >>> SEGMENT_BITS)].get((int) (index & SEGMENT_MASK));
+    }
+
+    @Override
+    public final short getShort(long index) {
+        final long pos = index << 1;
+        return segments[(int) (pos >>> SEGMENT_BITS)].getShort((int) (pos & SEGMENT_MASK));
+    }
+
+    @Override
+    public final int getInt(long index) {
+        final long pos = index << 2;
+        return segments[(int) (pos >>> SEGMENT_BITS)].getInt((int) (pos & SEGMENT_MASK));
+    }
+
+    @Override
+    public final long getLong(long index) {
+        final long pos = index << 3;
+        return segments[(int) (pos >>> SEGMENT_BITS)].getLong((int) (pos & SEGMENT_MASK));
+    }
+}
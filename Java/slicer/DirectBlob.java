@@ -0,0 +1,50 @@
+package slicer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Copy of a NIfTI data blob in off-heap (direct) buffers. It does not depend on
+ * the page cache like {@link MappedBlob} does, and it is also the way to keep
+ * the decompressed contents of a gzip-compressed volume in memory: inflation
+ * happens once, then sampling costs the same as for an uncompressed volume.
+ */
+public class DirectBlob extends BufferBlob {
+    private DirectBlob(ByteBuffer segments[]) {
+        super(segments);
+    }
+
+    /**
+     * Reads a blob from a file, gzip-compressed files (.gz) are inflated.
+     * 
+     * @param filename  path and filename to the file containing the blob
+     * @param offset    position of the first byte of the blob in the
+     *                  (decompressed) file
+     * @param length    length of the blob in bytes
+     * @param bigendian byte order of multi-byte values
+     * @return the blob
+     * @throws IOException when a file operation fails or the file is too short
+     */
+    public static DirectBlob read(String filename, long offset, long length, boolean bigendian) throws IOException {
+        try (ReadableByteChannel ch = Blobs.open(filename, offset)) {
+            return new DirectBlob(load(ch, length, bigendian));
+        }
+    }
+
+    private static ByteBuffer[] load(ReadableByteChannel ch, long length, boolean bigendian) throws IOException {
+        final ByteOrder order = bigendian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        ByteBuffer segments[] = new ByteBuffer[segmentCount(length)];
+        for (int i = 0; i < segments.length; i++) {
+            ByteBuffer segment = ByteBuffer.allocateDirect(segmentLength(length, i));
+            while (segment.hasRemaining())
+                if (ch.read(segment) < 0)
+                    throw new EOFException("Voxel data is shorter than " + length + " bytes.");
+            segment.flip();
+            segments[i] = segment.order(order);
+        }
+        return segments;
+    }
+}
@@ -1,42 +1,160 @@
 package slicer;
 
+import java.awt.Dimension;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 import nii.Nifti1Dataset;
+import quicknii.Series;
+import quicknii.Slice;
 
-public class Int32Slices {
+public class Int32Slices implements Closeable {
     public final boolean bigendian;
     public final short type;
     public final short XDIM;
     public final short YDIM;
     public final short ZDIM;
+    public final short TDIM;
     public final long offset;
     public final String blob;
     public final short BPV;
 
+    private final VoxelSource source;
+    private final Kernel kernel;
+    private String base;
+    private final Storage storage;
+    private int factor = 1;
+    private Int32Slices coarser;
+    private boolean coarserChecked;
+    private ForkJoinPool pool;
+    private volatile double range[];
+    private volatile double output[];
+    private final boolean floating;
+
     /**
-     * Class for generating 2D slices from NIfTI datasets
+     * Class for generating 2D slices from NIfTI datasets, voxel data is memory
+     * mapped
      * 
      * @param aNiftiFile path and filename to the actual NIfTI file
      * @throws Exception if file access fails, unsupported data format encountered,
      *                   or XML does not contain description for id.
      */
     public Int32Slices(String aNiftiFile) throws Exception {
+        this(aNiftiFile, Storage.MAPPED);
+    }
+
+    /**
+     * Class for generating 2D slices from NIfTI datasets
+     * 
+     * @param aNiftiFile path and filename to the actual NIfTI file
+     * @param storage    representation of the voxel data
+     * @throws Exception if file access fails, unsupported data format encountered,
+     *                   or XML does not contain description for id.
+     */
+    public Int32Slices(String aNiftiFile, Storage storage) throws Exception {
+        base = aNiftiFile;
+        this.storage = storage;
         Nifti1Dataset n1d = new Nifti1Dataset(aNiftiFile);
         n1d.readHeader();
         blob = n1d.ds_datname;
-        if (blob.endsWith(".gz"))
-            throw new Exception("Compressed Nifti is not supported.");
         type = n1d.datatype;
         BPV = Nifti1Dataset.bytesPerVoxel(type);
-        if (BPV > 4)
+        if (BPV > 8)
             throw new Exception(Nifti1Dataset.decodeDatatype(type) + " is not supported.");
+        floating = type == Nifti1Dataset.NIFTI_TYPE_FLOAT32 || type == Nifti1Dataset.NIFTI_TYPE_FLOAT64;
         bigendian = n1d.big_endian;
         offset = (long) n1d.vox_offset;
         XDIM = n1d.XDIM;
         YDIM = n1d.YDIM;
         ZDIM = n1d.ZDIM;
+        TDIM = (short) Math.max(1, n1d.TDIM);
+        source = storage.open(blob, offset, type, (long) XDIM * YDIM * ZDIM * TDIM, bigendian);
+        kernel = Kernel.of(type, source, source.layout(XDIM, YDIM, ZDIM));
+    }
+
+    /**
+     * Closes the voxel data and the opened levels of the pyramid, and stops the
+     * sampling threads.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        setParallelism(1);
+        try {
+            if (coarser != null)
+                coarser.close();
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Sets the number of threads sampling in parallel: {@link #getSlices} samples
+     * whole slices on them, single slices are sampled a few rows per thread.
+     * Voxel data is accessed with absolute reads, so this is safe for every
+     * {@link Storage}.
+     * 
+     * @param parallelism number of threads, 1 (the default) samples on the calling
+     *                    thread
+     */
+    public void setParallelism(int parallelism) {
+        if (pool != null)
+            pool.shutdown();
+        pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    /**
+     * Makes grayscale (and floating point) slices use the same mapping, derived
+     * from the statistics of the whole volume, instead of stretching the range of
+     * each slice to 0-65535. Values outside the range are clamped.
+     * 
+     * @param stats statistics of the volume (see {@link VolumeStats#of}), null
+     *              restores per-slice normalization
+     * @param low   percentile mapped to 0
+     * @param high  percentile mapped to 65535
+     */
+    public void setNormalization(VolumeStats stats, double low, double high) {
+        setRange(stats == null ? null : new double[] { stats.percentile(low), stats.percentile(high) });
+    }
+
+    private synchronized void setRange(double range[]) {
+        this.range = range;
+        if (coarser != null)
+            coarser.setRange(range);
+    }
+
+    /**
+     * Makes slices, rows and stacks come out at a target size instead of one
+     * pixel per voxel along the axes of the slice. The sampling step is adjusted,
+     * so only the pixels of the output are computed and only their voxels are
+     * read. The aspect ratio of the slice is kept. Preview levels (see
+     * {@link Pyramid}) are not affected.
+     * 
+     * @param width  maximum width in pixels, 0 for no limit
+     * @param height maximum height in pixels, 0 for no limit
+     * @param scale  factor applied to the size of the slices, used when width and
+     *               height are both 0. 1 with no width and height restores the
+     *               full size
+     */
+    public void setOutputSize(int width, int height, double scale) {
+        if (width < 0 || height < 0 || !(scale > 0))
+            throw new IllegalArgumentException("Invalid output size " + width + "x" + height + ", scale " + scale);
+        output = width == 0 && height == 0 && scale == 1 ? null : new double[] { width, height, scale };
+    }
+
+    /**
+     * @return the number of threads sampling a slice
+     */
+    public int getParallelism() {
+        return pool != null ? pool.getParallelism() : 1;
     }
 
     /**
@@ -56,83 +174,796 @@ public class Int32Slices {
      */
     public final int[][] getInt32Slice(double ox, double oy, double oz, double ux, double uy, double uz, double vx,
             double vy, double vz, boolean grayscale) throws IOException {
-        final int width = (int) Math.sqrt(ux * ux + uy * uy + uz * uz) + 1;
-        final int height = (int) Math.sqrt(vx * vx + vy * vy + vz * vz) + 1;
+        return getInt32Slice(ox, oy, oz, ux, uy, uz, vx, vy, vz, grayscale, null, pool);
+    }
+
+    /**
+     * Generates a slice and counts its labels while sampling, before any scaling,
+     * so label areas need no extra pass over the slice. Pixels outside the volume
+     * are counted as label 0.
+     * 
+     * @param ox        origin, x coordinate
+     * @param oy        origin, y coordinate
+     * @param oz        origin, z coordinate
+     * @param ux        horizontal axis of the slice, x component
+     * @param uy        horizontal axis of the slice, y component
+     * @param uz        horizontal axis of the slice, z component
+     * @param vx        vertical axis of the slice, x component
+     * @param vy        vertical axis of the slice, y component
+     * @param vz        vertical axis of the slice, z component
+     * @param grayscale scale result into the range of 0-65535. Ignored for RGB
+     *                  data. Implied for floating point data
+     * @param counts    receives the number of pixels of each label, counts are
+     *                  added to its existing contents
+     * @return 2D integer array containing the slice
+     * @throws IOException when a file operation fails
+     */
+    public final int[][] getInt32Slice(double ox, double oy, double oz, double ux, double uy, double uz, double vx,
+            double vy, double vz, boolean grayscale, LabelCounts counts) throws IOException {
+        return getInt32Slice(ox, oy, oz, ux, uy, uz, vx, vy, vz, grayscale, counts, pool);
+    }
 
-        int slice[][] = new int[height][width];
+    /**
+     * Generates the slices of a propagated series, see
+     * {@link #getSlices(List, boolean, SliceConsumer)}. Indices passed to the
+     * consumer are indices in {@code series.slices}.
+     * 
+     * @param series    series with anchoring vectors for every slice
+     * @param grayscale scale results into the range of 0-65535, see
+     *                  {@link #getInt32Slice}
+     * @param consumer  receives the slices in order
+     * @throws Exception when a file operation fails or the consumer throws
+     */
+    public void getSlices(Series series, boolean grayscale, SliceConsumer consumer) throws Exception {
+        getSlices(series, grayscale, 0, consumer);
+    }
 
-        final long dataxlinelen = XDIM * BPV;
-        final long datazslicesize = dataxlinelen * YDIM;
+    /**
+     * Generates the slices of a propagated series, see
+     * {@link #getSlices(List, boolean, int, SliceConsumer)}. Indices passed to the
+     * consumer are indices in {@code series.slices}.
+     * 
+     * @param series    series with anchoring vectors for every slice
+     * @param grayscale scale results into the range of 0-65535, see
+     *                  {@link #getInt32Slice}
+     * @param size      preview size, see
+     *                  {@link #getInt32Slice(double, double, double, double, double, double, double, double, double, boolean, int)},
+     *                  0 for full resolution
+     * @param consumer  receives the slices in order
+     * @throws Exception when a file operation fails or the consumer throws
+     */
+    public void getSlices(Series series, boolean grayscale, int size, SliceConsumer consumer) throws Exception {
+        getSlices(anchorings(series), grayscale, size, null, consumer);
+    }
 
-        try (RandomAccessFile raf = new RandomAccessFile(blob, "r")) {
+    /**
+     * Generates the slices of a propagated series and counts their labels, see
+     * {@link #getSlices(List, boolean, int, LabelCounts[], SliceConsumer)}.
+     * Indices passed to the consumer are indices in {@code series.slices}.
+     * 
+     * @param series    series with anchoring vectors for every slice
+     * @param grayscale scale results into the range of 0-65535, see
+     *                  {@link #getInt32Slice}
+     * @param size      preview size, 0 for full resolution
+     * @param counts    label counts of each slice, or null
+     * @param consumer  receives the slices in order
+     * @throws Exception when a file operation fails or the consumer throws
+     */
+    public void getSlices(Series series, boolean grayscale, int size, LabelCounts counts[], SliceConsumer consumer)
+            throws Exception {
+        getSlices(anchorings(series), grayscale, size, counts, consumer);
+    }
+
+    /**
+     * @param series series with anchoring vectors for every slice
+     * @return anchoring vectors of the slices as arrays
+     */
+    static List<double[]> anchorings(Series series) {
+        List<double[]> anchorings = new ArrayList<>(series.slices.size());
+        for (Slice s : series.slices) {
+            double a[] = new double[9];
+            for (int i = 0; i < a.length; i++)
+                a[i] = s.anchoring.get(i);
+            anchorings.add(a);
+        }
+        return anchorings;
+    }
+
+    /**
+     * Generates a batch of slices. When parallelism is set (see
+     * {@link #setParallelism(int)}), slices are sampled concurrently, each one on
+     * a single thread, with at most twice as many slices in flight as there are
+     * threads. Slices are handed to the consumer in order, on the calling thread.
+     * 
+     * @param anchorings anchoring vectors (ox, oy, oz, ux, uy, uz, vx, vy, vz) of
+     *                   the slices
+     * @param grayscale  scale results into the range of 0-65535, see
+     *                   {@link #getInt32Slice}
+     * @param consumer   receives the slices in order
+     * @throws Exception when a file operation fails or the consumer throws
+     */
+    public void getSlices(List<double[]> anchorings, boolean grayscale, SliceConsumer consumer) throws Exception {
+        getSlices(anchorings, grayscale, 0, consumer);
+    }
+
+    /**
+     * Generates a batch of slices. When parallelism is set (see
+     * {@link #setParallelism(int)}), slices are sampled concurrently, each one on
+     * a single thread, with at most twice as many slices in flight as there are
+     * threads. Slices are handed to the consumer in order, on the calling thread.
+     * 
+     * @param anchorings anchoring vectors (ox, oy, oz, ux, uy, uz, vx, vy, vz) of
+     *                   the slices
+     * @param grayscale  scale results into the range of 0-65535, see
+     *                   {@link #getInt32Slice}
+     * @param size       preview size, see
+     *                   {@link #getInt32Slice(double, double, double, double, double, double, double, double, double, boolean, int)},
+     *                   0 for full resolution
+     * @param consumer   receives the slices in order
+     * @throws Exception when a file operation fails or the consumer throws
+     */
+    public void getSlices(List<double[]> anchorings, boolean grayscale, int size, SliceConsumer consumer)
+            throws Exception {
+        getSlices(anchorings, grayscale, size, null, consumer);
+    }
+
+    /**
+     * Generates a batch of slices like
+     * {@link #getSlices(List, boolean, int, SliceConsumer)}, and counts the
+     * labels of every slice while sampling it, before any scaling, see
+     * {@link #getInt32Slice(double, double, double, double, double, double, double, double, double, boolean, LabelCounts)}.
+     * Counts of a slice are complete when the slice is handed to the consumer.
+     * 
+     * @param anchorings anchoring vectors (ox, oy, oz, ux, uy, uz, vx, vy, vz) of
+     *                   the slices
+     * @param grayscale  scale results into the range of 0-65535, see
+     *                   {@link #getInt32Slice}
+     * @param size       preview size, 0 for full resolution
+     * @param counts     label counts of each slice (same length as anchorings),
+     *                   or null
+     * @param consumer   receives the slices in order
+     * @throws Exception when a file operation fails or the consumer throws
+     */
+    public void getSlices(List<double[]> anchorings, boolean grayscale, int size, LabelCounts counts[],
+            SliceConsumer consumer) throws Exception {
+        if (pool == null) {
+            for (int i = 0; i < anchorings.size(); i++) {
+                final double a[] = anchorings.get(i);
+                consumer.accept(i, getInt32Slice(a[0], a[1], a[2], a[3], a[4], a[5], a[6], a[7], a[8], grayscale, size,
+                        counts != null ? counts[i] : null, null));
+            }
+            return;
+        }
+        final int window = pool.getParallelism() * 2;
+        Deque<Future<int[][]>> inflight = new ArrayDeque<>(window);
+        int next = 0;
+        try {
+            for (int i = 0; i < anchorings.size(); i++) {
+                final double a[] = anchorings.get(i);
+                final LabelCounts c = counts != null ? counts[i] : null;
+                if (inflight.size() == window)
+                    consumer.accept(next++, inflight.poll().get());
+                inflight.add(pool.submit(() -> getInt32Slice(a[0], a[1], a[2], a[3], a[4], a[5], a[6], a[7], a[8],
+                        grayscale, size, c, null)));
+            }
+            while (!inflight.isEmpty())
+                consumer.accept(next++, inflight.poll().get());
+        } catch (ExecutionException ee) {
+            throw ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+        } finally {
+            for (Future<int[][]> f : inflight)
+                f.cancel(false);
+        }
+    }
+
+    /**
+     * Generates a preview of a slice from the coarsest level of the pyramid (see
+     * {@link Pyramid}) that still gives at least size pixels along the longer
+     * side of the slice. Full resolution is used when the pyramid has not been
+     * built.
+     * 
+     * @param ox        origin, x coordinate
+     * @param oy        origin, y coordinate
+     * @param oz        origin, z coordinate
+     * @param ux        horizontal axis of the slice, x component
+     * @param uy        horizontal axis of the slice, y component
+     * @param uz        horizontal axis of the slice, z component
+     * @param vx        vertical axis of the slice, x component
+     * @param vy        vertical axis of the slice, y component
+     * @param vz        vertical axis of the slice, z component
+     * @param grayscale scale result into the range of 0-65535. Ignored for RGB
+     *                  data. Implied for floating point data
+     * @param size      requested size of the longer side of the slice in pixels
+     * @return 2D integer array containing the slice
+     * @throws IOException when a file operation fails
+     */
+    public final int[][] getInt32Slice(double ox, double oy, double oz, double ux, double uy, double uz, double vx,
+            double vy, double vz, boolean grayscale, int size) throws IOException {
+        return getInt32Slice(ox, oy, oz, ux, uy, uz, vx, vy, vz, grayscale, size, null, pool);
+    }
+
+    /**
+     * Generates a slice into a caller-supplied buffer, so the same buffer can be
+     * reused for many slices. Pixel (x, y) is stored at
+     * {@code buffer[offset + x + y * stride]}, pixels outside the volume are set to
+     * 0, the rest of the buffer is left untouched.
+     * 
+     * @param ox        origin, x coordinate
+     * @param oy        origin, y coordinate
+     * @param oz        origin, z coordinate
+     * @param ux        horizontal axis of the slice, x component
+     * @param uy        horizontal axis of the slice, y component
+     * @param uz        horizontal axis of the slice, z component
+     * @param vx        vertical axis of the slice, x component
+     * @param vy        vertical axis of the slice, y component
+     * @param vz        vertical axis of the slice, z component
+     * @param grayscale scale result into the range of 0-65535. Ignored for RGB
+     *                  data. Implied for floating point data
+     * @param buffer    destination
+     * @param offset    position of the top-left pixel in buffer
+     * @param stride    distance of rows in buffer
+     * @return width and height of the slice
+     * @throws IOException              when a file operation fails
+     * @throws IllegalArgumentException when the slice does not fit into the
+     *                                  buffer
+     */
+    public final Dimension getInt32Slice(double ox, double oy, double oz, double ux, double uy, double uz, double vx,
+            double vy, double vz, boolean grayscale, int buffer[], int offset, int stride) throws IOException {
+        final Dimension size = size(ux, uy, uz, vx, vy, vz);
+        final int width = size.width;
+        final int height = size.height;
+        if (stride < width || offset < 0 || offset + (long) stride * (height - 1) + width > buffer.length)
+            throw new IllegalArgumentException("Slice of " + width + "x" + height + " does not fit into the buffer.");
+        sample(new Target(buffer, offset, stride, width, height), ox, oy, oz, ux, uy, uz, vx, vy, vz, grayscale, pool);
+        return new Dimension(width, height);
+    }
+
+    /**
+     * Generates a slice row by row, so the whole slice never has to be in memory
+     * (like when rows are encoded into an image right away). Rows are sampled on
+     * the calling thread, in order. When the slice is scaled using its own
+     * extremes (grayscale or floating point data without
+     * {@link #setNormalization}), it is sampled twice: the first pass only
+     * collects the extremes.
+     * 
+     * @param ox        origin, x coordinate
+     * @param oy        origin, y coordinate
+     * @param oz        origin, z coordinate
+     * @param ux        horizontal axis of the slice, x component
+     * @param uy        horizontal axis of the slice, y component
+     * @param uz        horizontal axis of the slice, z component
+     * @param vx        vertical axis of the slice, x component
+     * @param vy        vertical axis of the slice, y component
+     * @param vz        vertical axis of the slice, z component
+     * @param grayscale scale result into the range of 0-65535. Ignored for RGB
+     *                  data. Implied for floating point data
+     * @param size      preview size, see
+     *                  {@link #getInt32Slice(double, double, double, double, double, double, double, double, double, boolean, int)},
+     *                  0 for full resolution
+     * @param consumer  receives the rows
+     * @throws Exception when a file operation fails or the consumer throws
+     */
+    public void getInt32Rows(double ox, double oy, double oz, double ux, double uy, double uz, double vx, double vy,
+            double vz, boolean grayscale, int size, RowConsumer consumer) throws Exception {
+        final Int32Slices level = level(ux, uy, uz, vx, vy, vz, size);
+        final double f = level.factor;
+        level.streamRows(ox / f, oy / f, oz / f, ux / f, uy / f, uz / f, vx / f, vy / f, vz / f, grayscale, consumer);
+    }
+
+    /**
+     * @param ux   horizontal axis of the slice, x component
+     * @param uy   horizontal axis of the slice, y component
+     * @param uz   horizontal axis of the slice, z component
+     * @param vx   vertical axis of the slice, x component
+     * @param vy   vertical axis of the slice, y component
+     * @param vz   vertical axis of the slice, z component
+     * @param size preview size, 0 for full resolution
+     * @return width and height of the slice, as generated by
+     *         {@link #getInt32Rows} or
+     *         {@link #getInt32Slice(double, double, double, double, double, double, double, double, double, boolean, int)}
+     * @throws IOException when a file operation fails
+     */
+    public Dimension getSliceSize(double ux, double uy, double uz, double vx, double vy, double vz, int size)
+            throws IOException {
+        final Int32Slices level = level(ux, uy, uz, vx, vy, vz, size);
+        final double f = level.factor;
+        return level.size(ux / f, uy / f, uz / f, vx / f, vy / f, vz / f);
+    }
+
+    private void streamRows(double ox, double oy, double oz, double ux, double uy, double uz, double vx, double vy,
+            double vz, boolean grayscale, RowConsumer consumer) throws Exception {
+        final Dimension size = size(ux, uy, uz, vx, vy, vz);
+        final int width = size.width;
+        final int height = size.height;
+        final int row[] = new int[width];
+        final Scaling scaling = scaling(grayscale);
+        if (scaling != null && scaling.range == null)
             for (int y = 0; y < height; y++) {
-                final double hx = ox + vx * y / (height);
-                final double hy = oy + vy * y / (height);
-                final double hz = oz + vz * y / (height);
-                for (int x = 0; x < width; x++) {
-                    final int lx = (int) (hx + ux * x / (width));
-                    final int ly = (int) (hy + uy * x / (width));
-                    final int lz = (int) (hz + uz * x / (width));
-                    if (lx >= 0 && lx < XDIM && ly >= 0 && ly < YDIM && lz >= 0 && lz < ZDIM) {
-                        raf.seek(offset + BPV * lx + ly * dataxlinelen + lz * datazslicesize);
-                        switch (type) {
-                        case Nifti1Dataset.NIFTI_TYPE_INT8:
-                            slice[y][x] = raf.readByte();
-                            break;
-                        case Nifti1Dataset.NIFTI_TYPE_UINT8:
-                            slice[y][x] = raf.readUnsignedByte();
-                            break;
-                        case Nifti1Dataset.NIFTI_TYPE_INT16:
-                            slice[y][x] = bigendian ? raf.readShort() : Short.reverseBytes(raf.readShort());
-                            break;
-                        case Nifti1Dataset.NIFTI_TYPE_UINT16:
-                            slice[y][x] = bigendian ? raf.readUnsignedShort()
-                                    : Integer.reverseBytes(raf.readUnsignedShort() << 16);
-                            break;
-                        case Nifti1Dataset.NIFTI_TYPE_INT32:
-                        case Nifti1Dataset.NIFTI_TYPE_UINT32:
-                        case Nifti1Dataset.NIFTI_TYPE_FLOAT32:
-                            slice[y][x] = bigendian ? raf.readInt() : Integer.reverseBytes(raf.readInt());
-                            break;
-                        case Nifti1Dataset.NIFTI_TYPE_RGB24:
-                            slice[y][x] = (raf.readUnsignedByte() << 16) + raf.readUnsignedShort();
-                            break;
-                        }
-                    }
-                }
+                kernel.row(row, 0, width, ox + vx * y / (height), oy + vy * y / (height), oz + vz * y / (height), ux,
+                        uy, uz);
+                scaling.observe(row, 0, width);
             }
+        for (int y = 0; y < height; y++) {
+            kernel.row(row, 0, width, ox + vx * y / (height), oy + vy * y / (height), oz + vz * y / (height), ux, uy,
+                    uz);
+            if (scaling != null)
+                scaling.apply(row, 0, width);
+            consumer.accept(y, row);
+        }
+    }
+
+    /**
+     * Generates the same slice from several volumes of a 4D dataset (like the
+     * time points of a series, or the structures of a probabilistic atlas) in a
+     * single pass: the position of each pixel is computed once and the voxels of
+     * the volumes are read together. Slices are scaled one by one, like
+     * {@link #getInt32Slice}. Preview levels are not used.
+     * 
+     * @param ox        origin, x coordinate
+     * @param oy        origin, y coordinate
+     * @param oz        origin, z coordinate
+     * @param ux        horizontal axis of the slice, x component
+     * @param uy        horizontal axis of the slice, y component
+     * @param uz        horizontal axis of the slice, z component
+     * @param vx        vertical axis of the slice, x component
+     * @param vy        vertical axis of the slice, y component
+     * @param vz        vertical axis of the slice, z component
+     * @param grayscale scale results into the range of 0-65535. Ignored for RGB
+     *                  data. Implied for floating point data
+     * @param volumes   indices of the volumes (t coordinates, 0 to TDIM-1), null
+     *                  for all of them
+     * @return 3D integer array containing the slice of volumes[i] at index i
+     * @throws IllegalArgumentException when a volume index is out of range
+     */
+    public final int[][][] getInt32Stack(double ox, double oy, double oz, double ux, double uy, double uz, double vx,
+            double vy, double vz, boolean grayscale, int volumes[]) {
+        if (volumes == null) {
+            volumes = new int[TDIM];
+            for (int t = 0; t < TDIM; t++)
+                volumes[t] = t;
         }
+        if (volumes.length == 0)
+            throw new IllegalArgumentException("No volumes selected.");
+        for (int t : volumes)
+            if (t < 0 || t >= TDIM)
+                throw new IllegalArgumentException("Volume " + t + " does not exist, TDIM is " + TDIM + ".");
+        final Dimension size = size(ux, uy, uz, vx, vy, vz);
+        int stack[][][] = new int[volumes.length][size.height][size.width];
+        sampleRows(new Target(stack, volumes), ox, oy, oz, ux, uy, uz, vx, vy, vz, pool);
+        for (int slice[][] : stack)
+            normalize(new Target(slice), grayscale);
+        return stack;
+    }
 
-        if (type == Nifti1Dataset.NIFTI_TYPE_FLOAT32) {
-            float min = Float.MAX_VALUE;
-            float max = -min;
-            for (int y = 0; y < height; y++)
-                for (int x = 0; x < width; x++) {
-                    float w = Float.intBitsToFloat(slice[y][x]);
-                    if (w < min)
-                        min = w;
-                    if (w > max)
-                        max = w;
+    /**
+     * Generates a slice of the actual voxel values of an integer volume, without
+     * any scaling. This is the lossless way of slicing INT64 and UINT32 volumes,
+     * RGB24 voxels are packed as 0xRRGGBB.
+     * 
+     * @param ox origin, x coordinate
+     * @param oy origin, y coordinate
+     * @param oz origin, z coordinate
+     * @param ux horizontal axis of the slice, x component
+     * @param uy horizontal axis of the slice, y component
+     * @param uz horizontal axis of the slice, z component
+     * @param vx vertical axis of the slice, x component
+     * @param vy vertical axis of the slice, y component
+     * @param vz vertical axis of the slice, z component
+     * @return 2D long array containing the slice
+     * @throws IllegalArgumentException for floating point volumes, see
+     *                                  {@link #getFloat64Slice}
+     */
+    public final long[][] getInt64Slice(double ox, double oy, double oz, double ux, double uy, double uz, double vx,
+            double vy, double vz) {
+        if (floating)
+            throw new IllegalArgumentException(Nifti1Dataset.decodeDatatype(type) + " is not an integer type.");
+        final Dimension size = size(ux, uy, uz, vx, vy, vz);
+        long slice[][] = new long[size.height][size.width];
+        sampleRows(new Target(slice), ox, oy, oz, ux, uy, uz, vx, vy, vz, pool);
+        return slice;
+    }
+
+    /**
+     * Generates a slice of the actual voxel values, without the 16-bit scaling of
+     * Int32 slices. This is the lossless way of slicing FLOAT32 and FLOAT64
+     * volumes, works for integer volumes too.
+     * 
+     * @param ox origin, x coordinate
+     * @param oy origin, y coordinate
+     * @param oz origin, z coordinate
+     * @param ux horizontal axis of the slice, x component
+     * @param uy horizontal axis of the slice, y component
+     * @param uz horizontal axis of the slice, z component
+     * @param vx vertical axis of the slice, x component
+     * @param vy vertical axis of the slice, y component
+     * @param vz vertical axis of the slice, z component
+     * @return 2D double array containing the slice
+     */
+    public final double[][] getFloat64Slice(double ox, double oy, double oz, double ux, double uy, double uz,
+            double vx, double vy, double vz) {
+        final Dimension size = size(ux, uy, uz, vx, vy, vz);
+        double slice[][] = new double[size.height][size.width];
+        sampleRows(new Target(slice), ox, oy, oz, ux, uy, uz, vx, vy, vz, pool);
+        return slice;
+    }
+
+    /**
+     * @param ux horizontal (or vertical) axis of the slice, x component
+     * @param uy horizontal (or vertical) axis of the slice, y component
+     * @param uz horizontal (or vertical) axis of the slice, z component
+     * @return native width (or height) of the slice for the axis, one pixel per
+     *         voxel, before {@link #setOutputSize} is applied
+     */
+    public static int getWidth(double ux, double uy, double uz) {
+        return (int) Math.sqrt(ux * ux + uy * uy + uz * uz) + 1;
+    }
+
+    /**
+     * @return size of the slice generated for the axes, see
+     *         {@link #setOutputSize}
+     */
+    Dimension size(double ux, double uy, double uz, double vx, double vy, double vz) {
+        final int width = getWidth(ux, uy, uz);
+        final int height = getWidth(vx, vy, vz);
+        final double output[] = this.output;
+        if (output == null)
+            return new Dimension(width, height);
+        double scale = output[2];
+        if (output[0] > 0 || output[1] > 0)
+            scale = Math.min(output[0] > 0 ? output[0] / width : Double.MAX_VALUE,
+                    output[1] > 0 ? output[1] / height : Double.MAX_VALUE);
+        return new Dimension(Math.max(1, (int) Math.round(width * scale)),
+                Math.max(1, (int) Math.round(height * scale)));
+    }
+
+    private int[][] getInt32Slice(double ox, double oy, double oz, double ux, double uy, double uz, double vx,
+            double vy, double vz, boolean grayscale, int size, LabelCounts counts, ForkJoinPool pool)
+            throws IOException {
+        final Int32Slices level = level(ux, uy, uz, vx, vy, vz, size);
+        if (level == this)
+            return getInt32Slice(ox, oy, oz, ux, uy, uz, vx, vy, vz, grayscale, counts, pool);
+        final double f = level.factor;
+        return level.getInt32Slice(ox / f, oy / f, oz / f, ux / f, uy / f, uz / f, vx / f, vy / f, vz / f, grayscale,
+                counts, pool);
+    }
+
+    /**
+     * @return the coarsest level of the pyramid giving at least size pixels along
+     *         the longer side of the slice
+     */
+    private Int32Slices level(double ux, double uy, double uz, double vx, double vy, double vz, int size)
+            throws IOException {
+        Int32Slices level = this;
+        if (size > 0)
+            for (Int32Slices next; (next = level.coarser()) != null; level = next) {
+                final double f = next.factor;
+                if (Math.max(getWidth(ux / f, uy / f, uz / f), getWidth(vx / f, vy / f, vz / f)) < size)
+                    break;
+            }
+        return level;
+    }
+
+    /**
+     * @return the next level of the pyramid, or null when it does not exist
+     */
+    private synchronized Int32Slices coarser() throws IOException {
+        if (!coarserChecked) {
+            coarserChecked = true;
+            final String name = Pyramid.levelName(base, factor * 2);
+            if (factor < 1 << Pyramid.LEVELS && new File(name).exists()) {
+                // levels without a bricked copy of their own are memory mapped
+                final Storage levelStorage = storage == Storage.BRICKED
+                        && !new File(name + BrickedBlob.EXTENSION).exists() ? Storage.MAPPED : storage;
+                try {
+                    coarser = new Int32Slices(name, levelStorage);
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e.getMessage(), e);
                 }
-            for (int y = 0; y < height; y++)
-                for (int x = 0; x < width; x++)
-                    slice[y][x] = (int) (65535 * (Float.intBitsToFloat(slice[y][x]) - min) / (max - min));
-        } else if (grayscale && type != Nifti1Dataset.NIFTI_TYPE_RGB24) {
-            int min = Integer.MAX_VALUE;
-            int max = Integer.MIN_VALUE;
-            for (int y = 0; y < height; y++)
-                for (int x = 0; x < width; x++) {
-                    int w = slice[y][x];
-                    if (w < min)
-                        min = w;
-                    if (w > max)
-                        max = w;
+                if (coarser.type != type || coarser.TDIM != TDIM) {
+                    coarser.close();
+                    coarser = null;
+                    throw new IOException(name + " does not match the volume, the pyramid has to be rebuilt.");
                 }
-            for (int y = 0; y < height; y++)
-                for (int x = 0; x < width; x++)
-                    slice[y][x] = 65535 * (slice[y][x] - min) / (max - min);
+                coarser.base = base;
+                coarser.factor = factor * 2;
+                coarser.range = range;
+            }
         }
+        return coarser;
+    }
+
+    /**
+     * @return value of voxel (x, y, z) as it appears in an Int32 slice
+     */
+    int get(int x, int y, int z) {
+        return kernel.get(x, y, z);
+    }
+
+    Kernel kernel() {
+        return kernel;
+    }
 
+    /**
+     * Applies the scaling of {@link #getInt32Slice} to a sampled slice.
+     */
+    void normalize(int slice[][], boolean grayscale) {
+        normalize(new Target(slice), grayscale);
+    }
+
+    /**
+     * @return numeric value of voxel (x, y, z)
+     */
+    double getValue(int x, int y, int z) {
+        return kernel.getDouble(x, y, z);
+    }
+
+    private int[][] getInt32Slice(double ox, double oy, double oz, double ux, double uy, double uz, double vx,
+            double vy, double vz, boolean grayscale, LabelCounts counts, ForkJoinPool pool) throws IOException {
+        final Dimension size = size(ux, uy, uz, vx, vy, vz);
+        int slice[][] = new int[size.height][size.width];
+        Target target = new Target(slice);
+        target.counts = counts;
+        sample(target, ox, oy, oz, ux, uy, uz, vx, vy, vz, grayscale, pool);
         return slice;
     }
+
+    private void sample(Target target, double ox, double oy, double oz, double ux, double uy, double uz, double vx,
+            double vy, double vz, boolean grayscale, ForkJoinPool pool) {
+        sampleRows(target, ox, oy, oz, ux, uy, uz, vx, vy, vz, pool);
+        normalize(target, grayscale);
+    }
+
+    private void normalize(Target target, boolean grayscale) {
+        final Scaling scaling = scaling(grayscale);
+        if (scaling == null)
+            return;
+        if (scaling.range == null)
+            for (int y = 0; y < target.height; y++)
+                scaling.observe(target.row(y), target.pos(y), target.pos(y) + target.width);
+        for (int y = 0; y < target.height; y++)
+            scaling.apply(target.row(y), target.pos(y), target.pos(y) + target.width);
+    }
+
+    /**
+     * @return scaling of a slice, null when the values are used as they are
+     */
+    private Scaling scaling(boolean grayscale) {
+        if (!floating && !(grayscale && type != Nifti1Dataset.NIFTI_TYPE_RGB24))
+            return null;
+        return new Scaling(range);
+    }
+
+    /**
+     * Scaling of a slice into the range of 0-65535. Without a global range (see
+     * {@link #setNormalization}), the extremes of the slice are used, and all rows
+     * have to be observed before any of them is scaled.
+     */
+    private final class Scaling {
+        final double range[];
+        float fmin = Float.MAX_VALUE;
+        float fmax = -fmin;
+        int imin = Integer.MAX_VALUE;
+        int imax = Integer.MIN_VALUE;
+
+        Scaling(double range[]) {
+            this.range = range;
+        }
+
+        void observe(int row[], int from, int to) {
+            if (floating)
+                for (int x = from; x < to; x++) {
+                    float w = Float.intBitsToFloat(row[x]);
+                    if (w < fmin)
+                        fmin = w;
+                    if (w > fmax)
+                        fmax = w;
+                }
+            else
+                for (int x = from; x < to; x++) {
+                    int w = row[x];
+                    if (w < imin)
+                        imin = w;
+                    if (w > imax)
+                        imax = w;
+                }
+        }
+
+        void apply(int row[], int from, int to) {
+            if (range != null) {
+                final double min = range[0];
+                final double scale = range[1] > min ? 65535 / (range[1] - min) : 0;
+                if (floating)
+                    for (int x = from; x < to; x++)
+                        row[x] = clamp((Float.intBitsToFloat(row[x]) - min) * scale);
+                else if (type == Nifti1Dataset.NIFTI_TYPE_UINT32)
+                    for (int x = from; x < to; x++)
+                        row[x] = clamp((Integer.toUnsignedLong(row[x]) - min) * scale);
+                else
+                    for (int x = from; x < to; x++)
+                        row[x] = clamp((row[x] - min) * scale);
+            } else if (floating)
+                for (int x = from; x < to; x++)
+                    row[x] = (int) (65535 * (Float.intBitsToFloat(row[x]) - fmin) / (fmax - fmin));
+            else
+                for (int x = from; x < to; x++)
+                    row[x] = 65535 * (row[x] - imin) / (imax - imin);
+        }
+    }
+
+    private static int clamp(double v) {
+        return v <= 0 ? 0 : v >= 65535 ? 65535 : (int) v;
+    }
+
+    private void sampleRows(Target target, double ox, double oy, double oz, double ux, double uy, double uz,
+            double vx, double vy, double vz, ForkJoinPool pool) {
+        final int height = target.height;
+        if (pool != null)
+            pool.invoke(new Rows(target, 0, height, Math.max(1, height / (pool.getParallelism() * 4)), ox, oy, oz, ux,
+                    uy, uz, vx, vy, vz));
+        else
+            sampleRows(target, 0, height, ox, oy, oz, ux, uy, uz, vx, vy, vz);
+    }
+
+    private void sampleRows(Target target, int from, int to, double ox, double oy, double oz, double ux, double uy,
+            double uz, double vx, double vy, double vz) {
+        final int height = target.height;
+        final LabelCounts counts = target.counts != null ? new LabelCounts() : null;
+        for (int y = from; y < to; y++) {
+            target.sample(kernel, y, ox + vx * y / (height), oy + vy * y / (height), oz + vz * y / (height), ux, uy,
+                    uz);
+            if (counts != null)
+                counts.add(target.row(y), target.pos(y), target.pos(y) + target.width);
+        }
+        if (counts != null)
+            synchronized (target.counts) {
+                target.counts.addAll(counts);
+            }
+    }
+
+    /**
+     * Destination of sampling, either the rows of a 2D array or a flat buffer with
+     * a row stride. Actual values are sampled into the rows of a {@code long} or
+     * {@code double} array, several volumes of a 4D dataset into a stack of
+     * slices.
+     */
+    private static final class Target {
+        final int rows[][];
+        final int stack[][][];
+        final int volumes[];
+        final long longs[][];
+        final double doubles[][];
+        final int buffer[];
+        final int offset;
+        final int stride;
+        final int width;
+        final int height;
+        LabelCounts counts;
+
+        Target(int rows[][]) {
+            this.rows = rows;
+            stack = null;
+            volumes = null;
+            longs = null;
+            doubles = null;
+            buffer = null;
+            offset = 0;
+            stride = 0;
+            width = rows[0].length;
+            height = rows.length;
+        }
+
+        Target(int stack[][][], int volumes[]) {
+            rows = null;
+            this.stack = stack;
+            this.volumes = volumes;
+            longs = null;
+            doubles = null;
+            buffer = null;
+            offset = 0;
+            stride = 0;
+            width = stack[0][0].length;
+            height = stack[0].length;
+        }
+
+        Target(long longs[][]) {
+            rows = null;
+            stack = null;
+            volumes = null;
+            this.longs = longs;
+            doubles = null;
+            buffer = null;
+            offset = 0;
+            stride = 0;
+            width = longs[0].length;
+            height = longs.length;
+        }
+
+        Target(double doubles[][]) {
+            rows = null;
+            stack = null;
+            volumes = null;
+            longs = null;
+            this.doubles = doubles;
+            buffer = null;
+            offset = 0;
+            stride = 0;
+            width = doubles[0].length;
+            height = doubles.length;
+        }
+
+        Target(int buffer[], int offset, int stride, int width, int height) {
+            rows = null;
+            stack = null;
+            volumes = null;
+            longs = null;
+            doubles = null;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.stride = stride;
+            this.width = width;
+            this.height = height;
+        }
+
+        int[] row(int y) {
+            return rows != null ? rows[y] : buffer;
+        }
+
+        int pos(int y) {
+            return rows != null ? 0 : offset + y * stride;
+        }
+
+        void sample(Kernel kernel, int y, double hx, double hy, double hz, double ux, double uy, double uz) {
+            if (stack != null) {
+                int rows[][] = new int[volumes.length][];
+                for (int c = 0; c < rows.length; c++)
+                    rows[c] = stack[c][y];
+                kernel.row(rows, volumes, width, hx, hy, hz, ux, uy, uz);
+            } else if (longs != null)
+                kernel.row(longs[y], 0, width, hx, hy, hz, ux, uy, uz);
+            else if (doubles != null)
+                kernel.row(doubles[y], 0, width, hx, hy, hz, ux, uy, uz);
+            else
+                kernel.row(row(y), pos(y), width, hx, hy, hz, ux, uy, uz);
+        }
+    }
+
+    private class Rows extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Target target;
+        final int from;
+        final int to;
+        final int grain;
+        final double ox, oy, oz, ux, uy, uz, vx, vy, vz;
+
+        Rows(Target target, int from, int to, int grain, double ox, double oy, double oz, double ux, double uy,
+                double uz, double vx, double vy, double vz) {
+            this.target = target;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.ox = ox;
+            this.oy = oy;
+            this.oz = oz;
+            this.ux = ux;
+            this.uy = uy;
+            this.uz = uz;
+            this.vx = vx;
+            this.vy = vy;
+            this.vz = vz;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                sampleRows(target, from, to, ox, oy, oz, ux, uy, uz, vx, vy, vz);
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            invokeAll(new Rows(target, from, mid, grain, ox, oy, oz, ux, uy, uz, vx, vy, vz),
+                    new Rows(target, mid, to, grain, ox, oy, oz, ux, uy, uz, vx, vy, vz));
+        }
+    }
 }
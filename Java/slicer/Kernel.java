@@ -0,0 +1,561 @@
+package slicer;
+
+import java.util.Arrays;
+
+import nii.Nifti1Dataset;
+
+/**
+ * Sampling loop specialized for a single NIfTI datatype. The datatype is
+ * resolved once per volume by {@link #of}, and each subclass contains its own
+ * copy of the row loop, so the voxel decoding is monomorphic and can be inlined
+ * by the JIT. Byte order is resolved by the {@link VoxelSource} itself.
+ * Besides the Int32 rows used for images, rows of actual values can be sampled
+ * into {@code long[]} and {@code double[]} arrays, the 64-bit datatypes have
+ * their own loops for these.
+ */
+abstract class Kernel {
+    final VoxelSource data;
+    final int XDIM;
+    final int YDIM;
+    final int ZDIM;
+    final long xindex[];
+    final long yindex[];
+    final long zindex[];
+    final long volume;
+
+    Kernel(VoxelSource data, Layout layout) {
+        this.data = data;
+        XDIM = layout.XDIM;
+        YDIM = layout.YDIM;
+        ZDIM = layout.ZDIM;
+        xindex = layout.x;
+        yindex = layout.y;
+        zindex = layout.z;
+        volume = layout.volume;
+    }
+
+    /**
+     * @param index linear index of the voxel, see {@link Layout}
+     * @return the voxel value as it appears in an Int32 slice
+     */
+    abstract int get(long index);
+
+    /**
+     * @return value of voxel (x, y, z) as it appears in an Int32 slice
+     */
+    final int get(int x, int y, int z) {
+        return get(xindex[x] + yindex[y] + zindex[z]);
+    }
+
+    /**
+     * @param index linear index of the voxel, see {@link Layout}
+     * @return the voxel value as an integer, RGB24 is packed as 0xRRGGBB
+     */
+    long getLong(long index) {
+        return get(index);
+    }
+
+    /**
+     * @param index linear index of the voxel, see {@link Layout}
+     * @return the numeric value of the voxel
+     */
+    double getDouble(long index) {
+        return getLong(index);
+    }
+
+    /**
+     * @return numeric value of voxel (x, y, z)
+     */
+    final double getDouble(int x, int y, int z) {
+        return getDouble(xindex[x] + yindex[y] + zindex[z]);
+    }
+
+    /**
+     * Samples one row of a slice, pixels outside the volume are set to 0. Only
+     * the run of pixels inside the volume (see {@link #clip}) is sampled, without
+     * bounds checks.
+     * 
+     * @param row   destination
+     * @param pos   position of the first pixel in row
+     * @param width number of pixels in the row
+     * @param hx    starting point of the row, x coordinate
+     * @param hy    starting point of the row, y coordinate
+     * @param hz    starting point of the row, z coordinate
+     * @param ux    horizontal axis of the slice, x component
+     * @param uy    horizontal axis of the slice, y component
+     * @param uz    horizontal axis of the slice, z component
+     */
+    abstract void row(int row[], int pos, int width, double hx, double hy, double hz, double ux, double uy, double uz);
+
+    /**
+     * Samples one row of actual values, see {@link #getLong(long)} and
+     * {@link #row(int[], int, int, double, double, double, double, double, double)}.
+     */
+    void row(long row[], int pos, int width, double hx, double hy, double hz, double ux, double uy, double uz) {
+        final long span = clip(width, hx, hy, hz, ux, uy, uz);
+        final int from = (int) (span >> 32);
+        final int to = (int) span;
+        Arrays.fill(row, pos, pos + from, 0);
+        for (int x = from; x < to; x++)
+            row[pos + x] = getLong(xindex[(int) (hx + ux * x / (width))] + yindex[(int) (hy + uy * x / (width))]
+                    + zindex[(int) (hz + uz * x / (width))]);
+        Arrays.fill(row, pos + to, pos + width, 0);
+    }
+
+    /**
+     * Samples one row of actual values, see {@link #getDouble(long)} and
+     * {@link #row(int[], int, int, double, double, double, double, double, double)}.
+     */
+    void row(double row[], int pos, int width, double hx, double hy, double hz, double ux, double uy, double uz) {
+        final long span = clip(width, hx, hy, hz, ux, uy, uz);
+        final int from = (int) (span >> 32);
+        final int to = (int) span;
+        Arrays.fill(row, pos, pos + from, 0);
+        for (int x = from; x < to; x++)
+            row[pos + x] = getDouble(xindex[(int) (hx + ux * x / (width))] + yindex[(int) (hy + uy * x / (width))]
+                    + zindex[(int) (hz + uz * x / (width))]);
+        Arrays.fill(row, pos + to, pos + width, 0);
+    }
+
+    /**
+     * Samples one row from several volumes of a 4D dataset, the position of each
+     * pixel is computed once and the volumes are read together, see
+     * {@link #row(int[], int, int, double, double, double, double, double, double)}.
+     * 
+     * @param rows    destination, one row per volume
+     * @param volumes indices of the volumes (t coordinates)
+     */
+    final void row(int rows[][], int volumes[], int width, double hx, double hy, double hz, double ux, double uy,
+            double uz) {
+        final long span = clip(width, hx, hy, hz, ux, uy, uz);
+        final int from = (int) (span >> 32);
+        final int to = (int) span;
+        final int count = volumes.length;
+        final long offsets[] = new long[count];
+        for (int c = 0; c < count; c++) {
+            offsets[c] = volumes[c] * volume;
+            Arrays.fill(rows[c], 0, from, 0);
+            Arrays.fill(rows[c], to, width, 0);
+        }
+        for (int x = from; x < to; x++) {
+            final long index = xindex[(int) (hx + ux * x / (width))] + yindex[(int) (hy + uy * x / (width))]
+                    + zindex[(int) (hz + uz * x / (width))];
+            for (int c = 0; c < count; c++)
+                rows[c][x] = get(index + offsets[c]);
+        }
+    }
+
+    /**
+     * Samples the same row from several volumes of the same dimensions, the voxel
+     * coordinates of each pixel are computed once and the volumes are read
+     * together. The volumes may have different datatypes and layouts.
+     * 
+     * @param kernels volumes
+     * @param rows    destination, one row per volume
+     */
+    static void row(Kernel kernels[], int rows[][], int width, double hx, double hy, double hz, double ux, double uy,
+            double uz) {
+        final long span = kernels[0].clip(width, hx, hy, hz, ux, uy, uz);
+        final int from = (int) (span >> 32);
+        final int to = (int) span;
+        final int count = kernels.length;
+        for (int k = 0; k < count; k++) {
+            Arrays.fill(rows[k], 0, from, 0);
+            Arrays.fill(rows[k], to, width, 0);
+        }
+        for (int x = from; x < to; x++) {
+            final int lx = (int) (hx + ux * x / (width));
+            final int ly = (int) (hy + uy * x / (width));
+            final int lz = (int) (hz + uz * x / (width));
+            for (int k = 0; k < count; k++) {
+                final Kernel kernel = kernels[k];
+                rows[k][x] = kernel.get(kernel.xindex[lx] + kernel.yindex[ly] + kernel.zindex[lz]);
+            }
+        }
+    }
+
+    /**
+     * Finds the pixels of a row which fall inside the volume. The row is a
+     * segment of a line, so they form a single run: its ends are estimated by
+     * intersecting the line with the box of the volume, then refined using the
+     * exact same arithmetic as the sampling loops.
+     * 
+     * @return first pixel inside the volume in the upper 32 bits, end of the run
+     *         (exclusive) in the lower 32 bits
+     */
+    final long clip(int width, double hx, double hy, double hz, double ux, double uy, double uz) {
+        double lo = 0;
+        double hi = width;
+        // -1 < h + u * x / width < DIM holds for the pixels inside
+        for (int axis = 0; axis < 3; axis++) {
+            final double h = axis == 0 ? hx : axis == 1 ? hy : hz;
+            final double u = axis == 0 ? ux : axis == 1 ? uy : uz;
+            final int dim = axis == 0 ? XDIM : axis == 1 ? YDIM : ZDIM;
+            if (u != 0) {
+                final double a = (-1 - h) * width / u;
+                final double b = (dim - h) * width / u;
+                lo = Math.max(lo, Math.min(a, b));
+                hi = Math.min(hi, Math.max(a, b));
+            } else if (!(h > -1 && h < dim))
+                hi = lo;
+        }
+        int from = lo > 1 ? (int) Math.min(width, Math.floor(lo) - 1) : 0;
+        int to = hi < width - 1 ? (int) Math.max(from, Math.ceil(hi) + 1) : width;
+        if (to < from)
+            to = from;
+        while (from < to && !inside(from, width, hx, hy, hz, ux, uy, uz))
+            from++;
+        while (to > from && !inside(to - 1, width, hx, hy, hz, ux, uy, uz))
+            to--;
+        return (long) from << 32 | to;
+    }
+
+    private boolean inside(int x, int width, double hx, double hy, double hz, double ux, double uy, double uz) {
+        final int lx = (int) (hx + ux * x / (width));
+        final int ly = (int) (hy + uy * x / (width));
+        final int lz = (int) (hz + uz * x / (width));
+        return lx >= 0 && lx < XDIM && ly >= 0 && ly < YDIM && lz >= 0 && lz < ZDIM;
+    }
+
+    static Kernel of(short type, VoxelSource data, Layout layout) {
+        switch (type) {
+        case Nifti1Dataset.NIFTI_TYPE_INT8:
+            return new Int8(data, layout);
+        case Nifti1Dataset.NIFTI_TYPE_UINT8:
+            return new UInt8(data, layout);
+        case Nifti1Dataset.NIFTI_TYPE_INT16:
+            return new Int16(data, layout);
+        case Nifti1Dataset.NIFTI_TYPE_UINT16:
+            return new UInt16(data, layout);
+        case Nifti1Dataset.NIFTI_TYPE_INT32:
+            return new Int32(data, layout);
+        case Nifti1Dataset.NIFTI_TYPE_UINT32:
+            return new UInt32(data, layout);
+        case Nifti1Dataset.NIFTI_TYPE_FLOAT32:
+            return new Float32(data, layout);
+        case Nifti1Dataset.NIFTI_TYPE_INT64:
+            return new Int64(data, layout);
+        case Nifti1Dataset.NIFTI_TYPE_FLOAT64:
+            return new Float64(data, layout);
+        case Nifti1Dataset.NIFTI_TYPE_RGB24:
+            return new RGB24(data, layout);
+        default:
+            throw new IllegalArgumentException(Nifti1Dataset.decodeDatatype(type) + " is not supported.");
+        }
+    }
+
+    /**
+     * INT8
+     */
+    static final class Int8 extends Kernel {
+        Int8(VoxelSource data, Layout layout) {
+            super(data, layout);
+        }
+
+        @Override
+        int get(long index) {
+            return data.getByte(index);
+        }
+
+        @Override
+        void row(int row[], int pos, int width, double hx, double hy, double hz, double ux, double uy, double uz) {
+            final long span = clip(width, hx, hy, hz, ux, uy, uz);
+            final int from = (int) (span >> 32);
+            final int to = (int) span;
+            Arrays.fill(row, pos, pos + from, 0);
+            for (int x = from; x < to; x++)
+                row[pos + x] = get(xindex[(int) (hx + ux * x / (width))] + yindex[(int) (hy + uy * x / (width))]
+                        + zindex[(int) (hz + uz * x / (width))]);
+            Arrays.fill(row, pos + to, pos + width, 0);
+        }
+    }
+
+    /**
+     * UINT8
+     */
+    static final class UInt8 extends Kernel {
+        UInt8(VoxelSource data, Layout layout) {
+            super(data, layout);
+        }
+
+        @Override
+        int get(long index) {
+            return data.getByte(index) & 0xFF;
+        }
+
+        @Override
+        void row(int row[], int pos, int width, double hx, double hy, double hz, double ux, double uy, double uz) {
+            final long span = clip(width, hx, hy, hz, ux, uy, uz);
+            final int from = (int) (span >> 32);
+            final int to = (int) span;
+            Arrays.fill(row, pos, pos + from, 0);
+            for (int x = from; x < to; x++)
+                row[pos + x] = get(xindex[(int) (hx + ux * x / (width))] + yindex[(int) (hy + uy * x / (width))]
+                        + zindex[(int) (hz + uz * x / (width))]);
+            Arrays.fill(row, pos + to, pos + width, 0);
+        }
+    }
+
+    /**
+     * INT16
+     */
+    static final class Int16 extends Kernel {
+        Int16(VoxelSource data, Layout layout) {
+            super(data, layout);
+        }
+
+        @Override
+        int get(long index) {
+            return data.getShort(index);
+        }
+
+        @Override
+        void row(int row[], int pos, int width, double hx, double hy, double hz, double ux, double uy, double uz) {
+            final long span = clip(width, hx, hy, hz, ux, uy, uz);
+            final int from = (int) (span >> 32);
+            final int to = (int) span;
+            Arrays.fill(row, pos, pos + from, 0);
+            for (int x = from; x < to; x++)
+                row[pos + x] = get(xindex[(int) (hx + ux * x / (width))] + yindex[(int) (hy + uy * x / (width))]
+                        + zindex[(int) (hz + uz * x / (width))]);
+            Arrays.fill(row, pos + to, pos + width, 0);
+        }
+    }
+
+    /**
+     * UINT16
+     */
+    static final class UInt16 extends Kernel {
+        UInt16(VoxelSource data, Layout layout) {
+            super(data, layout);
+        }
+
+        @Override
+        int get(long index) {
+            return data.getShort(index) & 0xFFFF;
+        }
+
+        @Override
+        void row(int row[], int pos, int width, double hx, double hy, double hz, double ux, double uy, double uz) {
+            final long span = clip(width, hx, hy, hz, ux, uy, uz);
+            final int from = (int) (span >> 32);
+            final int to = (int) span;
+            Arrays.fill(row, pos, pos + from, 0);
+            for (int x = from; x < to; x++)
+                row[pos + x] = get(xindex[(int) (hx + ux * x / (width))] + yindex[(int) (hy + uy * x / (width))]
+                        + zindex[(int) (hz + uz * x / (width))]);
+            Arrays.fill(row, pos + to, pos + width, 0);
+        }
+    }
+
+    /**
+     * INT32
+     */
+    static final class Int32 extends Kernel {
+        Int32(VoxelSource data, Layout layout) {
+            super(data, layout);
+        }
+
+        @Override
+        int get(long index) {
+            return data.getInt(index);
+        }
+
+        @Override
+        void row(int row[], int pos, int width, double hx, double hy, double hz, double ux, double uy, double uz) {
+            final long span = clip(width, hx, hy, hz, ux, uy, uz);
+            final int from = (int) (span >> 32);
+            final int to = (int) span;
+            Arrays.fill(row, pos, pos + from, 0);
+            for (int x = from; x < to; x++)
+                row[pos + x] = get(xindex[(int) (hx + ux * x / (width))] + yindex[(int) (hy + uy * x / (width))]
+                        + zindex[(int) (hz + uz * x / (width))]);
+            Arrays.fill(row, pos + to, pos + width, 0);
+        }
+    }
+
+    /**
+     * UINT32, Int32 slices contain the raw bits
+     */
+    static final class UInt32 extends Kernel {
+        UInt32(VoxelSource data, Layout layout) {
+            super(data, layout);
+        }
+
+        @Override
+        int get(long index) {
+            return data.getInt(index);
+        }
+
+        @Override
+        long getLong(long index) {
+            return data.getInt(index) & 0xFFFFFFFFL;
+        }
+
+        @Override
+        void row(int row[], int pos, int width, double hx, double hy, double hz, double ux, double uy, double uz) {
+            final long span = clip(width, hx, hy, hz, ux, uy, uz);
+            final int from = (int) (span >> 32);
+            final int to = (int) span;
+            Arrays.fill(row, pos, pos + from, 0);
+            for (int x = from; x < to; x++)
+                row[pos + x] = get(xindex[(int) (hx + ux * x / (width))] + yindex[(int) (hy + uy * x / (width))]
+                        + zindex[(int) (hz + uz * x / (width))]);
+            Arrays.fill(row, pos + to, pos + width, 0);
+        }
+    }
+
+    /**
+     * FLOAT32, Int32 slices contain the raw bits
+     */
+    static final class Float32 extends Kernel {
+        Float32(VoxelSource data, Layout layout) {
+            super(data, layout);
+        }
+
+        @Override
+        int get(long index) {
+            return data.getInt(index);
+        }
+
+        @Override
+        long getLong(long index) {
+            return (long) getDouble(index);
+        }
+
+        @Override
+        double getDouble(long index) {
+            return Float.intBitsToFloat(data.getInt(index));
+        }
+
+        @Override
+        void row(int row[], int pos, int width, double hx, double hy, double hz, double ux, double uy, double uz) {
+            final long span = clip(width, hx, hy, hz, ux, uy, uz);
+            final int from = (int) (span >> 32);
+            final int to = (int) span;
+            Arrays.fill(row, pos, pos + from, 0);
+            for (int x = from; x < to; x++)
+                row[pos + x] = get(xindex[(int) (hx + ux * x / (width))] + yindex[(int) (hy + uy * x / (width))]
+                        + zindex[(int) (hz + uz * x / (width))]);
+            Arrays.fill(row, pos + to, pos + width, 0);
+        }
+    }
+
+    /**
+     * RGB24, packed as 0xRRGGBB
+     */
+    static final class RGB24 extends Kernel {
+        RGB24(VoxelSource data, Layout layout) {
+            super(data, layout);
+        }
+
+        @Override
+        int get(long index) {
+            return (data.getByte(index * 3) & 0xFF) << 16 | (data.getByte(index * 3 + 1) & 0xFF) << 8
+                    | data.getByte(index * 3 + 2) & 0xFF;
+        }
+
+        @Override
+        void row(int row[], int pos, int width, double hx, double hy, double hz, double ux, double uy, double uz) {
+            final long span = clip(width, hx, hy, hz, ux, uy, uz);
+            final int from = (int) (span >> 32);
+            final int to = (int) span;
+            Arrays.fill(row, pos, pos + from, 0);
+            for (int x = from; x < to; x++)
+                row[pos + x] = get(xindex[(int) (hx + ux * x / (width))] + yindex[(int) (hy + uy * x / (width))]
+                        + zindex[(int) (hz + uz * x / (width))]);
+            Arrays.fill(row, pos + to, pos + width, 0);
+        }
+    }
+
+    /**
+     * INT64, Int32 slices contain the lower 32 bits
+     */
+    static final class Int64 extends Kernel {
+        Int64(VoxelSource data, Layout layout) {
+            super(data, layout);
+        }
+
+        @Override
+        int get(long index) {
+            return (int) data.getLong(index);
+        }
+
+        @Override
+        long getLong(long index) {
+            return data.getLong(index);
+        }
+
+        @Override
+        void row(int row[], int pos, int width, double hx, double hy, double hz, double ux, double uy, double uz) {
+            final long span = clip(width, hx, hy, hz, ux, uy, uz);
+            final int from = (int) (span >> 32);
+            final int to = (int) span;
+            Arrays.fill(row, pos, pos + from, 0);
+            for (int x = from; x < to; x++)
+                row[pos + x] = get(xindex[(int) (hx + ux * x / (width))] + yindex[(int) (hy + uy * x / (width))]
+                        + zindex[(int) (hz + uz * x / (width))]);
+            Arrays.fill(row, pos + to, pos + width, 0);
+        }
+
+        @Override
+        void row(long row[], int pos, int width, double hx, double hy, double hz, double ux, double uy, double uz) {
+            final long span = clip(width, hx, hy, hz, ux, uy, uz);
+            final int from = (int) (span >> 32);
+            final int to = (int) span;
+            Arrays.fill(row, pos, pos + from, 0);
+            for (int x = from; x < to; x++)
+                row[pos + x] = data.getLong(xindex[(int) (hx + ux * x / (width))]
+                        + yindex[(int) (hy + uy * x / (width))] + zindex[(int) (hz + uz * x / (width))]);
+            Arrays.fill(row, pos + to, pos + width, 0);
+        }
+    }
+
+    /**
+     * FLOAT64, Int32 slices contain the raw bits of the value converted to FLOAT32
+     */
+    static final class Float64 extends Kernel {
+        Float64(VoxelSource data, Layout layout) {
+            super(data, layout);
+        }
+
+        @Override
+        int get(long index) {
+            return Float.floatToRawIntBits((float) getDouble(index));
+        }
+
+        @Override
+        long getLong(long index) {
+            return (long) getDouble(index);
+        }
+
+        @Override
+        double getDouble(long index) {
+            return Double.longBitsToDouble(data.getLong(index));
+        }
+
+        @Override
+        void row(int row[], int pos, int width, double hx, double hy, double hz, double ux, double uy, double uz) {
+            final long span = clip(width, hx, hy, hz, ux, uy, uz);
+            final int from = (int) (span >> 32);
+            final int to = (int) span;
+            Arrays.fill(row, pos, pos + from, 0);
+            for (int x = from; x < to; x++)
+                row[pos + x] = get(xindex[(int) (hx + ux * x / (width))] + yindex[(int) (hy + uy * x / (width))]
+                        + zindex[(int) (hz + uz * x / (width))]);
+            Arrays.fill(row, pos + to, pos + width, 0);
+        }
+
+        @Override
+        void row(double row[], int pos, int width, double hx, double hy, double hz, double ux, double uy, double uz) {
+            final long span = clip(width, hx, hy, hz, ux, uy, uz);
+            final int from = (int) (span >> 32);
+            final int to = (int) span;
+            Arrays.fill(row, pos, pos + from, 0);
+            for (int x = from; x < to; x++)
+                row[pos + x] = Double.longBitsToDouble(data.getLong(xindex[(int) (hx + ux * x / (width))]
+                        + yindex[(int) (hy + uy * x / (width))] + zindex[(int) (hz + uz * x / (width))]));
+            Arrays.fill(row, pos + to, pos + width, 0);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package slicer;
+
+import java.util.Arrays;
+
+/**
+ * Number of pixels per label ID, a hash map with open addressing on primitive
+ * {@code int} keys, so counting does not box. Not thread-safe, use one instance
+ * per thread and combine them with {@link #addAll}.
+ */
+public class LabelCounts {
+    private int keys[] = new int[64];
+    private long counts[] = new long[64];
+    private int shift = 32 - 6;
+    private int size;
+
+    /**
+     * @param label label ID
+     * @param count number of pixels to add
+     */
+    public void add(int label, long count) {
+        int slot = slot(label);
+        if (counts[slot] == 0) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                slot = slot(label);
+            }
+            keys[slot] = label;
+            size++;
+        }
+        counts[slot] += count;
+    }
+
+    /**
+     * Counts the pixels of a row, runs of the same label are added at once.
+     * 
+     * @param row  labels
+     * @param from first pixel
+     * @param to   end of the pixels (exclusive)
+     */
+    public void add(int row[], int from, int to) {
+        int x = from;
+        while (x < to) {
+            final int label = row[x];
+            final int start = x;
+            while (++x < to && row[x] == label)
+                ;
+            add(label, x - start);
+        }
+    }
+
+    /**
+     * @param other counts to be added to this one
+     */
+    public void addAll(LabelCounts other) {
+        for (int i = 0; i < other.keys.length; i++)
+            if (other.counts[i] != 0)
+                add(other.keys[i], other.counts[i]);
+    }
+
+    /**
+     * @param label label ID
+     * @return number of pixels with the label
+     */
+    public long get(int label) {
+        return counts[slot(label)];
+    }
+
+    /**
+     * @return number of different labels
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the labels which occurred, in ascending order
+     */
+    public int[] labels() {
+        int labels[] = new int[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++)
+            if (counts[i] != 0)
+                labels[n++] = keys[i];
+        Arrays.sort(labels);
+        return labels;
+    }
+
+    private int slot(int label) {
+        final int mask = keys.length - 1;
+        int slot = (label * 0x9E3779B9) >>> shift;
+        while (counts[slot] != 0 && keys[slot] != label)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void grow() {
+        final int oldkeys[] = keys;
+        final long oldcounts[] = counts;
+        keys = new int[oldkeys.length * 2];
+        counts = new long[oldkeys.length * 2];
+        shift--;
+        for (int i = 0; i < oldkeys.length; i++)
+            if (oldcounts[i] != 0) {
+                final int slot = slot(oldkeys[i]);
+                keys[slot] = oldkeys[i];
+                counts[slot] = oldcounts[i];
+            }
+    }
+}
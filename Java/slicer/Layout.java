@@ -0,0 +1,76 @@
+package slicer;
+
+/**
+ * Order of voxels in a {@link VoxelSource}. The linear index of voxel (x, y, z)
+ * is {@code x[x] + y[y] + z[z]}, the lookup tables make any separable order
+ * cost the same as the x-major order of NIfTI. Volumes of a 4D dataset follow
+ * each other, {@link #volume} indices apart.
+ */
+public final class Layout {
+    public final int XDIM;
+    public final int YDIM;
+    public final int ZDIM;
+    /**
+     * Distance of the volumes of a 4D dataset
+     */
+    public final long volume;
+    final long x[];
+    final long y[];
+    final long z[];
+
+    private Layout(int XDIM, int YDIM, int ZDIM, long volume) {
+        this.XDIM = XDIM;
+        this.YDIM = YDIM;
+        this.ZDIM = ZDIM;
+        this.volume = volume;
+        x = new long[XDIM];
+        y = new long[YDIM];
+        z = new long[ZDIM];
+    }
+
+    /**
+     * @param x x coordinate of the voxel
+     * @param y y coordinate of the voxel
+     * @param z z coordinate of the voxel
+     * @return linear index of the voxel
+     */
+    public long index(int x, int y, int z) {
+        return this.x[x] + this.y[y] + this.z[z];
+    }
+
+    /**
+     * @return x-major order of NIfTI
+     */
+    public static Layout linear(int XDIM, int YDIM, int ZDIM) {
+        Layout l = new Layout(XDIM, YDIM, ZDIM, (long) XDIM * YDIM * ZDIM);
+        for (int i = 0; i < XDIM; i++)
+            l.x[i] = i;
+        for (int i = 0; i < YDIM; i++)
+            l.y[i] = (long) i * XDIM;
+        for (int i = 0; i < ZDIM; i++)
+            l.z[i] = (long) i * XDIM * YDIM;
+        return l;
+    }
+
+    /**
+     * @param bits edge of the bricks is {@code 1 << bits}
+     * @return order of {@link BrickedBlob}: bricks in x-major order, voxels in
+     *         x-major order inside each brick. Partial bricks at the edges are
+     *         padded to full size
+     */
+    public static Layout bricked(int XDIM, int YDIM, int ZDIM, int bits) {
+        final int mask = (1 << bits) - 1;
+        final long brick = 1L << (3 * bits);
+        final long bx = (XDIM + mask) >> bits;
+        final long by = (YDIM + mask) >> bits;
+        final long bz = (ZDIM + mask) >> bits;
+        Layout l = new Layout(XDIM, YDIM, ZDIM, bx * by * bz * brick);
+        for (int i = 0; i < XDIM; i++)
+            l.x[i] = (i >> bits) * brick + (i & mask);
+        for (int i = 0; i < YDIM; i++)
+            l.y[i] = (i >> bits) * bx * brick + ((i & mask) << bits);
+        for (int i = 0; i < ZDIM; i++)
+            l.z[i] = (i >> bits) * bx * by * brick + ((long) (i & mask) << (2 * bits));
+        return l;
+    }
+}
@@ -0,0 +1,42 @@
+package slicer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only memory mapping of a NIfTI data blob. Blobs larger than what a
+ * single {@link ByteBuffer} can address are mapped as a sequence of 1 GB
+ * segments.
+ */
+public class MappedBlob extends BufferBlob {
+    /**
+     * @param filename  path and filename to the file containing the blob
+     * @param offset    position of the first byte of the blob in the file
+     * @param length    length of the blob in bytes
+     * @param bigendian byte order of multi-byte values
+     * @throws IOException when the file can not be opened or mapped, or it is
+     *                     shorter than offset + length
+     */
+    public MappedBlob(String filename, long offset, long length, boolean bigendian) throws IOException {
+        super(map(filename, offset, length, bigendian));
+    }
+
+    private static ByteBuffer[] map(String filename, long offset, long length, boolean bigendian) throws IOException {
+        try (FileChannel fc = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (fc.size() < offset + length)
+                throw new IOException(filename + " is truncated: it has " + fc.size() + " bytes instead of "
+                        + (offset + length) + ".");
+            final ByteOrder order = bigendian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            ByteBuffer segments[] = new ByteBuffer[segmentCount(length)];
+            for (int i = 0; i < segments.length; i++)
+                segments[i] = fc.map(MapMode.READ_ONLY, offset + ((long) i << SEGMENT_BITS), segmentLength(length, i))
+                        .order(order);
+            return segments;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package slicer;
+
+import java.awt.Dimension;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import quicknii.Series;
+
+/**
+ * Slices of several co-registered volumes with the same dimensions, like the
+ * MRI, DTI and segmentation volumes of an atlas. The voxel coordinates of each
+ * pixel are computed once, and the voxels of all volumes are read together.
+ * Every volume keeps its own datatype, storage and normalization settings (see
+ * {@link Int32Slices#setNormalization}).
+ */
+public class MultiSlices {
+    public final Int32Slices volumes[];
+
+    private final Kernel kernels[];
+    private ForkJoinPool pool;
+
+    /**
+     * @param volumes volumes to be sliced together
+     * @throws IllegalArgumentException when the dimensions of the volumes differ
+     */
+    public MultiSlices(Int32Slices... volumes) {
+        if (volumes.length == 0)
+            throw new IllegalArgumentException("No volumes.");
+        for (Int32Slices v : volumes)
+            if (v.XDIM != volumes[0].XDIM || v.YDIM != volumes[0].YDIM || v.ZDIM != volumes[0].ZDIM)
+                throw new IllegalArgumentException(v.blob + " has different dimensions.");
+        this.volumes = volumes.clone();
+        kernels = new Kernel[volumes.length];
+        for (int i = 0; i < volumes.length; i++)
+            kernels[i] = volumes[i].kernel();
+    }
+
+    /**
+     * Sets the number of threads sampling slices of a batch in parallel, see
+     * {@link #getSlices(List, boolean[], SliceSetConsumer)}.
+     * 
+     * @param parallelism number of threads, 1 (the default) samples on the calling
+     *                    thread
+     */
+    public void setParallelism(int parallelism) {
+        if (pool != null)
+            pool.shutdown();
+        pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    /**
+     * @return the number of threads sampling slices
+     */
+    public int getParallelism() {
+        return pool != null ? pool.getParallelism() : 1;
+    }
+
+    /**
+     * Sets the size of the slices of every volume, see
+     * {@link Int32Slices#setOutputSize}.
+     * 
+     * @param width  maximum width in pixels, 0 for no limit
+     * @param height maximum height in pixels, 0 for no limit
+     * @param scale  factor applied to the size of the slices, used when width and
+     *               height are both 0
+     */
+    public void setOutputSize(int width, int height, double scale) {
+        for (Int32Slices v : volumes)
+            v.setOutputSize(width, height, scale);
+    }
+
+    /**
+     * Generates the same slice from every volume.
+     * 
+     * @param ox        origin, x coordinate
+     * @param oy        origin, y coordinate
+     * @param oz        origin, z coordinate
+     * @param ux        horizontal axis of the slice, x component
+     * @param uy        horizontal axis of the slice, y component
+     * @param uz        horizontal axis of the slice, z component
+     * @param vx        vertical axis of the slice, x component
+     * @param vy        vertical axis of the slice, y component
+     * @param vz        vertical axis of the slice, z component
+     * @param grayscale scale the slice of each volume into the range of 0-65535,
+     *                  see {@link Int32Slices#getInt32Slice}
+     * @return 3D integer array containing the slice of volumes[i] at index i
+     */
+    public final int[][][] getInt32Slices(double ox, double oy, double oz, double ux, double uy, double uz,
+            double vx, double vy, double vz, boolean grayscale[]) {
+        final Dimension size = volumes[0].size(ux, uy, uz, vx, vy, vz);
+        final int width = size.width;
+        final int height = size.height;
+        final int slices[][][] = new int[kernels.length][height][width];
+        final int rows[][] = new int[kernels.length][];
+        for (int y = 0; y < height; y++) {
+            for (int k = 0; k < kernels.length; k++)
+                rows[k] = slices[k][y];
+            Kernel.row(kernels, rows, width, ox + vx * y / (height), oy + vy * y / (height), oz + vz * y / (height),
+                    ux, uy, uz);
+        }
+        for (int k = 0; k < kernels.length; k++)
+            volumes[k].normalize(slices[k], grayscale[k]);
+        return slices;
+    }
+
+    /**
+     * Generates the slices of a propagated series, see
+     * {@link #getSlices(List, boolean[], SliceSetConsumer)}. Indices passed to
+     * the consumer are indices in {@code series.slices}.
+     * 
+     * @param series    series with anchoring vectors for every slice
+     * @param grayscale scaling of each volume, see {@link #getInt32Slices}
+     * @param consumer  receives the slices in order
+     * @throws Exception when the consumer throws
+     */
+    public void getSlices(Series series, boolean grayscale[], SliceSetConsumer consumer) throws Exception {
+        getSlices(Int32Slices.anchorings(series), grayscale, consumer);
+    }
+
+    /**
+     * Generates a batch of slices. When parallelism is set (see
+     * {@link #setParallelism(int)}), slices are sampled concurrently, with at
+     * most twice as many slices in flight as there are threads. Slices are
+     * handed to the consumer in order, on the calling thread.
+     * 
+     * @param anchorings anchoring vectors (ox, oy, oz, ux, uy, uz, vx, vy, vz) of
+     *                   the slices
+     * @param grayscale  scaling of each volume, see {@link #getInt32Slices}
+     * @param consumer   receives the slices in order
+     * @throws Exception when the consumer throws
+     */
+    public void getSlices(List<double[]> anchorings, boolean grayscale[], SliceSetConsumer consumer)
+            throws Exception {
+        if (pool == null) {
+            for (int i = 0; i < anchorings.size(); i++) {
+                final double a[] = anchorings.get(i);
+                consumer.accept(i, getInt32Slices(a[0], a[1], a[2], a[3], a[4], a[5], a[6], a[7], a[8], grayscale));
+            }
+            return;
+        }
+        final int window = pool.getParallelism() * 2;
+        Deque<Future<int[][][]>> inflight = new ArrayDeque<>(window);
+        int next = 0;
+        try {
+            for (final double a[] : anchorings) {
+                if (inflight.size() == window)
+                    consumer.accept(next++, inflight.poll().get());
+                inflight.add(pool.submit(
+                        () -> getInt32Slices(a[0], a[1], a[2], a[3], a[4], a[5], a[6], a[7], a[8], grayscale)));
+            }
+            while (!inflight.isEmpty())
+                consumer.accept(next++, inflight.poll().get());
+        } catch (ExecutionException ee) {
+            throw ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+        } finally {
+            for (Future<int[][][]> f : inflight)
+                f.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package slicer;
+
+/**
+ * Finds the edges between labels while the rows of a slice arrive, keeping a
+ * rolling window of three rows only. A pixel is on an edge when its left,
+ * right, upper or lower neighbour has a different label, so edges are two
+ * pixels wide, one pixel on each side. Rows are passed on one row late, when
+ * the row below them has arrived, {@link #finish()} passes the last row.
+ */
+public class Outline implements RowConsumer {
+    /**
+     * Receives the rows with their edges.
+     */
+    public interface EdgeConsumer {
+        /**
+         * @param y     index of the row
+         * @param row   labels of the row, the array is reused
+         * @param edges true for the pixels on an edge, the array is reused
+         * @throws Exception when processing the row fails
+         */
+        void accept(int y, int row[], boolean edges[]) throws Exception;
+    }
+
+    private final int window[][];
+    private final boolean edges[];
+    private final EdgeConsumer consumer;
+    private int rows;
+
+    /**
+     * @param width    width of the slice in pixels
+     * @param consumer receives the rows with their edges
+     */
+    public Outline(int width, EdgeConsumer consumer) {
+        window = new int[3][width];
+        edges = new boolean[width];
+        this.consumer = consumer;
+    }
+
+    /**
+     * @param y   index of the row, rows have to arrive in order
+     * @param row labels of the row, only the first width pixels are used, the
+     *            array is not retained
+     */
+    @Override
+    public void accept(int y, int row[]) throws Exception {
+        if (y != rows)
+            throw new IllegalStateException("Row " + y + " arrived instead of row " + rows + ".");
+        System.arraycopy(row, 0, window[y % 3], 0, edges.length);
+        rows++;
+        if (y > 0)
+            emit(y - 1, true);
+    }
+
+    /**
+     * Passes the last row, call it after the last row has arrived.
+     *
+     * @throws Exception when the consumer throws
+     */
+    public void finish() throws Exception {
+        if (rows > 0)
+            emit(rows - 1, false);
+    }
+
+    private void emit(int y, boolean below) throws Exception {
+        final int row[] = window[y % 3];
+        final int up[] = y > 0 ? window[(y - 1) % 3] : row;
+        final int down[] = below ? window[(y + 1) % 3] : row;
+        final int last = row.length - 1;
+        for (int x = 0; x <= last; x++) {
+            final int v = row[x];
+            edges[x] = up[x] != v || down[x] != v || x > 0 && row[x - 1] != v || x < last && row[x + 1] != v;
+        }
+        consumer.accept(y, row, edges);
+    }
+}
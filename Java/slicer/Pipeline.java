@@ -0,0 +1,185 @@
+package slicer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Staged processing of a sequence of items: every stage has its own worker
+ * threads and a bounded queue in front of it, so slow stages (like sampling or
+ * encoding) overlap with the others (like writing files), and the amount of
+ * items in flight stays limited. Items pass through the stages in the order of
+ * the stages, but their order is not kept. The first failure aborts the whole
+ * pipeline.
+ * 
+ * @param <T> type of the items, typically a mutable job object completed stage
+ *            by stage
+ */
+public class Pipeline<T> {
+    /**
+     * One step of the processing.
+     */
+    public interface Stage<T> {
+        /**
+         * @param item item to be processed
+         * @throws Exception when processing fails, this aborts the pipeline
+         */
+        void process(T item) throws Exception;
+    }
+
+    private static final Object END = new Object();
+
+    private final List<Step> steps = new ArrayList<>();
+
+    /**
+     * Appends a stage.
+     * 
+     * @param name     name of the stage, used in {@link #toString()}
+     * @param workers  number of threads running the stage
+     * @param capacity length of the queue in front of the stage
+     * @param stage    the processing
+     * @return this pipeline
+     */
+    public Pipeline<T> stage(String name, int workers, int capacity, Stage<T> stage) {
+        if (workers < 1 || capacity < 1)
+            throw new IllegalArgumentException("Stage " + name + " needs at least one worker and queue slot.");
+        steps.add(new Step(name, workers, capacity, stage));
+        return this;
+    }
+
+    /**
+     * Processes the items, returns when all of them passed through every stage.
+     * Items are fed into the first queue on the calling thread, this blocks while
+     * the queue is full.
+     * 
+     * @param items items to be processed
+     * @throws Exception the first failure of any stage
+     */
+    public void run(Iterable<T> items) throws Exception {
+        if (steps.isEmpty())
+            throw new IllegalStateException("Pipeline has no stages.");
+        int threads = 0;
+        for (Step step : steps)
+            threads += step.workers;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final Thread feeder = Thread.currentThread();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < steps.size(); i++) {
+                final Step step = steps.get(i);
+                final Step next = i + 1 < steps.size() ? steps.get(i + 1) : null;
+                for (int w = 0; w < step.workers; w++)
+                    futures.add(executor.submit(() -> {
+                        try {
+                            step.work(next);
+                        } catch (Throwable t) {
+                            if (failure.compareAndSet(null, t)) {
+                                executor.shutdownNow();
+                                feeder.interrupt();
+                            }
+                        }
+                    }));
+            }
+            final Step first = steps.get(0);
+            for (T item : items)
+                first.put(item);
+            for (int w = 0; w < first.workers; w++)
+                first.put(END);
+            for (Future<?> f : futures)
+                f.get();
+        } catch (InterruptedException | CancellationException e) {
+            if (failure.get() == null)
+                throw e;
+        } finally {
+            executor.shutdownNow();
+            if (failure.get() != null)
+                Thread.interrupted();
+        }
+        final Throwable t = failure.get();
+        if (t instanceof Error)
+            throw (Error) t;
+        if (t != null)
+            throw (Exception) t;
+    }
+
+    /**
+     * @return the number of items waiting in front of each stage
+     */
+    public int[] queueDepths() {
+        int depths[] = new int[steps.size()];
+        for (int i = 0; i < depths.length; i++)
+            depths[i] = steps.get(i).queue.size();
+        return depths;
+    }
+
+    /**
+     * @return the highest number of items which were waiting in front of each
+     *         stage, a stage with a full queue in front of it is a bottleneck
+     */
+    public int[] maxQueueDepths() {
+        int depths[] = new int[steps.size()];
+        for (int i = 0; i < depths.length; i++)
+            depths[i] = steps.get(i).maxDepth.get();
+        return depths;
+    }
+
+    /**
+     * @return one line per stage with its workers, queue capacity, highest queue
+     *         depth and number of processed items
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Step step : steps)
+            sb.append(String.format("%-10s workers: %3d  queue: %4d  max depth: %4d  items: %d%n", step.name,
+                    step.workers, step.capacity, step.maxDepth.get(), step.processed.get()));
+        return sb.toString();
+    }
+
+    private final class Step {
+        final String name;
+        final int workers;
+        final int capacity;
+        final Stage<T> stage;
+        final BlockingQueue<Object> queue;
+        final AtomicInteger maxDepth = new AtomicInteger();
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+
+        Step(String name, int workers, int capacity, Stage<T> stage) {
+            this.name = name;
+            this.workers = workers;
+            this.capacity = capacity;
+            this.stage = stage;
+            queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        void put(Object item) throws InterruptedException {
+            queue.put(item);
+            final int depth = queue.size();
+            for (int max; depth > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, depth);)
+                ;
+        }
+
+        @SuppressWarnings("unchecked")
+        void work(Step next) throws Exception {
+            for (Object item; (item = queue.take()) != END;) {
+                stage.process((T) item);
+                processed.incrementAndGet();
+                if (next != null)
+                    next.put(item);
+            }
+            if (next != null && finished.incrementAndGet() == workers)
+                for (int w = 0; w < next.workers; w++)
+                    next.put(END);
+        }
+    }
+}
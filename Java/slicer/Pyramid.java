@@ -0,0 +1,196 @@
+package slicer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import nii.Nifti1Dataset;
+
+/**
+ * Builder of downsampled copies of a NIfTI volume for preview-speed slicing,
+ * see {@link Int32Slices#getInt32Slice(double, double, double, double, double, double, double, double, double, boolean, int)}.
+ * Level n is stored next to the volume as {@code <name>.<2^n>x.nii}, each level
+ * is half the size of the previous one along every axis. Every volume of a 4D
+ * dataset is downsampled.
+ */
+public class Pyramid {
+    public static final int LEVELS = 3;
+
+    /**
+     * @param aNiftiFile path and filename to the full resolution NIfTI file
+     * @param factor     downsampling factor of the level
+     * @return path and filename to the level
+     */
+    public static String levelName(String aNiftiFile, int factor) {
+        String name = aNiftiFile;
+        if (name.endsWith(Nifti1Dataset.GZIP_EXT))
+            name = name.substring(0, name.length() - Nifti1Dataset.GZIP_EXT.length());
+        if (name.endsWith(Nifti1Dataset.NI1_EXT))
+            name = name.substring(0, name.length() - Nifti1Dataset.NI1_EXT.length());
+        return name + "." + factor + "x" + Nifti1Dataset.NI1_EXT;
+    }
+
+    /**
+     * Writes the 2x, 4x and 8x downsampled levels of a volume, each one is
+     * computed from the previous level.
+     * 
+     * @param aNiftiFile path and filename to the full resolution NIfTI file
+     * @param mode       use the most frequent value of each 2x2x2 block (for
+     *                   segmentation volumes) instead of the mean
+     * @throws Exception if file access fails or unsupported data format
+     *                   encountered
+     */
+    public static void build(String aNiftiFile, boolean mode) throws Exception {
+        String source = aNiftiFile;
+        for (int level = 1; level <= LEVELS; level++) {
+            String target = levelName(aNiftiFile, 1 << level);
+            downsample(source, target, mode);
+            source = target;
+        }
+    }
+
+    private static void downsample(String source, String target, boolean mode) throws Exception {
+        Nifti1Dataset n1d = new Nifti1Dataset(source);
+        n1d.readHeader();
+        try (Int32Slices src = new Int32Slices(source)) {
+            final Kernel kernel = src.kernel();
+            final int XDIM = (src.XDIM + 1) / 2;
+            final int YDIM = (src.YDIM + 1) / 2;
+            final int ZDIM = (src.ZDIM + 1) / 2;
+            final long length = (long) XDIM * YDIM * ZDIM * src.TDIM * src.BPV;
+            if (length > Integer.MAX_VALUE)
+                throw new Exception("Downsampled volume is too large.");
+            ByteBuffer bb = ByteBuffer.allocate((int) length)
+                    .order(src.bigendian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            final long block[] = new long[8];
+            for (int t = 0; t < src.TDIM; t++)
+                for (int z = 0; z < ZDIM; z++)
+                    for (int y = 0; y < YDIM; y++)
+                        for (int x = 0; x < XDIM; x++) {
+                            int n = 0;
+                            for (int dz = z * 2; dz < Math.min(z * 2 + 2, src.ZDIM); dz++)
+                                for (int dy = y * 2; dy < Math.min(y * 2 + 2, src.YDIM); dy++)
+                                    for (int dx = x * 2; dx < Math.min(x * 2 + 2, src.XDIM); dx++)
+                                        block[n++] = value(kernel, src.type, kernel.xindex[dx] + kernel.yindex[dy]
+                                                + kernel.zindex[dz] + t * kernel.volume);
+                            put(bb, src.type, mode ? mode(block, n) : mean(block, n, src.type));
+                        }
+
+            Nifti1Dataset out = new Nifti1Dataset();
+            out.copyHeader(n1d);
+            out.setHeaderFilename(target);
+            out.setDataFilename(target);
+            out.setDims((short) (src.TDIM > 1 ? 4 : 3), (short) XDIM, (short) YDIM, (short) ZDIM,
+                    (short) (src.TDIM > 1 ? src.TDIM : 0), (short) 0, (short) 0, (short) 0);
+            for (int i = 1; i <= 3; i++)
+                out.pixdim[i] *= 2;
+            // voxel 0 of the level is the center of the first 2x2x2 block
+            for (float srow[] : new float[][] { out.srow_x, out.srow_y, out.srow_z }) {
+                srow[3] += 0.5f * (srow[0] + srow[1] + srow[2]);
+                for (int i = 0; i < 3; i++)
+                    srow[i] *= 2;
+            }
+            out.writeHeader();
+            out.writeData(bb.array());
+        }
+    }
+
+    /**
+     * @return raw value of a voxel: the Int32 slice value up to 32 bits, the
+     *         value of INT64 voxels and the bits of FLOAT64 voxels
+     */
+    private static long value(Kernel kernel, short type, long index) {
+        switch (type) {
+        case Nifti1Dataset.NIFTI_TYPE_INT64:
+            return kernel.getLong(index);
+        case Nifti1Dataset.NIFTI_TYPE_FLOAT64:
+            return Double.doubleToRawLongBits(kernel.getDouble(index));
+        default:
+            return kernel.get(index);
+        }
+    }
+
+    private static long mode(long block[], int n) {
+        long best = block[0];
+        int bestcount = 0;
+        for (int i = 0; i < n; i++) {
+            int count = 0;
+            for (int j = i; j < n; j++)
+                if (block[j] == block[i])
+                    count++;
+            if (count > bestcount) {
+                best = block[i];
+                bestcount = count;
+            }
+        }
+        return best;
+    }
+
+    private static long mean(long block[], int n, short type) {
+        switch (type) {
+        case Nifti1Dataset.NIFTI_TYPE_FLOAT32: {
+            float sum = 0;
+            for (int i = 0; i < n; i++)
+                sum += Float.intBitsToFloat((int) block[i]);
+            return Float.floatToRawIntBits(sum / n);
+        }
+        case Nifti1Dataset.NIFTI_TYPE_FLOAT64: {
+            double sum = 0;
+            for (int i = 0; i < n; i++)
+                sum += Double.longBitsToDouble(block[i]);
+            return Double.doubleToRawLongBits(sum / n);
+        }
+        case Nifti1Dataset.NIFTI_TYPE_RGB24: {
+            int r = 0, g = 0, b = 0;
+            for (int i = 0; i < n; i++) {
+                r += (int) block[i] >> 16 & 0xFF;
+                g += (int) block[i] >> 8 & 0xFF;
+                b += (int) block[i] & 0xFF;
+            }
+            return (r + n / 2) / n << 16 | (g + n / 2) / n << 8 | (b + n / 2) / n;
+        }
+        case Nifti1Dataset.NIFTI_TYPE_UINT32: {
+            long sum = 0;
+            for (int i = 0; i < n; i++)
+                sum += Integer.toUnsignedLong((int) block[i]);
+            return (int) Math.round((double) sum / n);
+        }
+        case Nifti1Dataset.NIFTI_TYPE_INT64: {
+            // quotients and remainders separately, the sum could overflow
+            long quotient = 0, remainder = 0;
+            for (int i = 0; i < n; i++) {
+                quotient += block[i] / n;
+                remainder += block[i] % n;
+            }
+            return quotient + Math.round((double) remainder / n);
+        }
+        default: {
+            long sum = 0;
+            for (int i = 0; i < n; i++)
+                sum += block[i];
+            return (int) Math.round((double) sum / n);
+        }
+        }
+    }
+
+    private static void put(ByteBuffer bb, short type, long value) {
+        switch (type) {
+        case Nifti1Dataset.NIFTI_TYPE_INT8:
+        case Nifti1Dataset.NIFTI_TYPE_UINT8:
+            bb.put((byte) value);
+            break;
+        case Nifti1Dataset.NIFTI_TYPE_INT16:
+        case Nifti1Dataset.NIFTI_TYPE_UINT16:
+            bb.putShort((short) value);
+            break;
+        case Nifti1Dataset.NIFTI_TYPE_RGB24:
+            bb.put((byte) (value >> 16)).put((byte) (value >> 8)).put((byte) value);
+            break;
+        case Nifti1Dataset.NIFTI_TYPE_INT64:
+        case Nifti1Dataset.NIFTI_TYPE_FLOAT64:
+            bb.putLong(value);
+            break;
+        default:
+            bb.putInt((int) value);
+        }
+    }
+}
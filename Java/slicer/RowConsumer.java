@@ -0,0 +1,13 @@
+package slicer;
+
+/**
+ * Receives the rows of {@link Int32Slices#getInt32Rows}.
+ */
+public interface RowConsumer {
+    /**
+     * @param y   index of the row
+     * @param row pixels of the row, the array is reused for the next row
+     * @throws Exception when processing the row fails, this aborts the slice
+     */
+    void accept(int y, int row[]) throws Exception;
+}
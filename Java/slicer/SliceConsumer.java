@@ -0,0 +1,13 @@
+package slicer;
+
+/**
+ * Receives the results of {@link Int32Slices#getSlices}.
+ */
+public interface SliceConsumer {
+    /**
+     * @param index position of the slice in the batch
+     * @param slice 2D integer array containing the slice
+     * @throws Exception when processing the slice fails, this aborts the batch
+     */
+    void accept(int index, int slice[][]) throws Exception;
+}
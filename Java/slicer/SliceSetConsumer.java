@@ -0,0 +1,13 @@
+package slicer;
+
+/**
+ * Receives the results of {@link MultiSlices#getSlices}.
+ */
+public interface SliceSetConsumer {
+    /**
+     * @param index  position of the slice in the batch
+     * @param slices 2D integer arrays containing the slice of each volume
+     * @throws Exception when processing the slices fails, this aborts the batch
+     */
+    void accept(int index, int slices[][][]) throws Exception;
+}
@@ -0,0 +1,82 @@
+package slicer;
+
+import java.io.IOException;
+
+import nii.Nifti1Dataset;
+
+/**
+ * Ways of accessing the voxel data of a volume, see the {@link VoxelSource}
+ * implementations for details. Gzip-compressed (.gz) volumes are inflated once
+ * when they are opened.
+ */
+public enum Storage {
+    /**
+     * Memory mapped file ({@link MappedBlob}), no up-front cost, relies on the
+     * page cache. Compressed files can not be mapped, they are inflated into
+     * off-heap buffers like for {@link #DIRECT}.
+     */
+    MAPPED {
+        @Override
+        public VoxelSource open(String filename, long offset, short type, long voxels, boolean bigendian)
+                throws IOException {
+            if (Blobs.compressed(filename))
+                return DIRECT.open(filename, offset, type, voxels, bigendian);
+            return new MappedBlob(filename, offset, voxels * Nifti1Dataset.bytesPerVoxel(type), bigendian);
+        }
+    },
+    /**
+     * Primitive Java array ({@link ArrayBlob}), limited to 2G voxels.
+     */
+    HEAP {
+        @Override
+        public VoxelSource open(String filename, long offset, short type, long voxels, boolean bigendian)
+                throws IOException {
+            return ArrayBlob.read(filename, offset, type, voxels, bigendian);
+        }
+    },
+    /**
+     * Off-heap buffers ({@link DirectBlob}).
+     */
+    DIRECT {
+        @Override
+        public VoxelSource open(String filename, long offset, short type, long voxels, boolean bigendian)
+                throws IOException {
+            return DirectBlob.read(filename, offset, voxels * Nifti1Dataset.bytesPerVoxel(type), bigendian);
+        }
+    },
+    /**
+     * Brick sidecar file ({@link BrickedBlob}) with a cache, the open bricked
+     * volumes share a quarter of the maximum heap size. The sidecar has to be
+     * created in advance with {@link BrickedBlob#write}.
+     */
+    BRICKED {
+        @Override
+        public VoxelSource open(String filename, long offset, short type, long voxels, boolean bigendian)
+                throws IOException {
+            BrickedBlob bricked = new BrickedBlob(filename);
+            try {
+                if (bricked.type != type)
+                    throw new IOException("Brick file has different datatype.");
+                if ((long) bricked.XDIM * bricked.YDIM * bricked.ZDIM * bricked.TDIM != voxels)
+                    throw new IOException("Brick file has different dimensions.");
+            } catch (IOException e) {
+                bricked.close();
+                throw e;
+            }
+            return bricked;
+        }
+    };
+
+    /**
+     * @param filename  path and filename to the file containing the blob
+     * @param offset    position of the first byte of the blob in the (possibly
+     *                  decompressed) file
+     * @param type      NIfTI datatype of the voxels
+     * @param voxels    number of voxels
+     * @param bigendian byte order of multi-byte values
+     * @return voxel data of the volume, to be closed when it is not used anymore
+     * @throws IOException when a file operation fails
+     */
+    public abstract VoxelSource open(String filename, long offset, short type, long voxels, boolean bigendian)
+            throws IOException;
+}
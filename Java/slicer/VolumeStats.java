@@ -0,0 +1,141 @@
+package slicer;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import nii.Nifti1Dataset;
+
+/**
+ * Intensity statistics of a whole volume: range, histogram and percentiles.
+ * Computing them takes a parallel pass over every voxel, so the result is
+ * cached in a JSON file next to the data blob ({@code blob + EXTENSION}),
+ * which is reused as long as the size and modification time of the blob do
+ * not change.
+ */
+public class VolumeStats {
+    public static final String EXTENSION = ".stats.json";
+    public static final int BINS = 4096;
+
+    public double size;
+    public double mtime;
+    public double min;
+    public double max;
+    public double count;
+    public List<Double> histogram = new ArrayList<>();
+
+    /**
+     * @param percent percentage of voxels, 0-100
+     * @return the value below which the given percentage of voxels fall,
+     *         interpolated inside the histogram bins
+     */
+    public double percentile(double percent) {
+        final double target = count * percent / 100;
+        double cumulative = 0;
+        for (int i = 0; i < histogram.size(); i++) {
+            final double bin = histogram.get(i);
+            if (bin > 0 && cumulative + bin >= target)
+                return min + (i + (target - cumulative) / bin) * (max - min) / BINS;
+            cumulative += bin;
+        }
+        return max;
+    }
+
+    /**
+     * Loads the statistics of a volume from the cache, or computes (and caches)
+     * them. Failing to write the cache is not an error.
+     * 
+     * @param volume the volume, RGB volumes are not supported
+     * @return statistics of the volume
+     * @throws Exception when reading the volume fails
+     */
+    public static VolumeStats of(Int32Slices volume) throws Exception {
+        if (volume.type == Nifti1Dataset.NIFTI_TYPE_RGB24)
+            throw new Exception("Statistics are not supported for RGB volumes.");
+        final File blob = new File(volume.blob);
+        final File cache = new File(volume.blob + EXTENSION);
+        if (cache.exists()) {
+            VolumeStats stats = new VolumeStats();
+            try (FileReader fr = new FileReader(cache)) {
+                parsers.JSON.mapObject(parsers.JSON.parse(fr), stats, null);
+            }
+            if (stats.size == blob.length() && stats.mtime == blob.lastModified() && stats.histogram.size() == BINS)
+                return stats;
+        }
+        VolumeStats stats = compute(volume);
+        stats.size = blob.length();
+        stats.mtime = blob.lastModified();
+        try (PrintStream ps = new PrintStream(cache)) {
+            stats.write(ps);
+        } catch (IOException e) {
+            cache.delete();
+        }
+        return stats;
+    }
+
+    /**
+     * Computes the statistics of a volume in two parallel passes, one for the
+     * range and one for the histogram. NaN voxels are ignored.
+     * 
+     * @param volume the volume
+     * @return statistics of the volume, size and mtime are not set
+     */
+    public static VolumeStats compute(Int32Slices volume) {
+        final double range[] = IntStream.range(0, volume.ZDIM).parallel().collect(
+                () -> new double[] { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0 }, (r, z) -> {
+                    for (int y = 0; y < volume.YDIM; y++)
+                        for (int x = 0; x < volume.XDIM; x++) {
+                            final double v = volume.getValue(x, y, z);
+                            if (v < r[0])
+                                r[0] = v;
+                            if (v > r[1])
+                                r[1] = v;
+                            if (v == v)
+                                r[2]++;
+                        }
+                }, (r, s) -> {
+                    r[0] = Math.min(r[0], s[0]);
+                    r[1] = Math.max(r[1], s[1]);
+                    r[2] += s[2];
+                });
+        final double min = range[2] > 0 ? range[0] : 0;
+        final double max = range[2] > 0 ? range[1] : 0;
+        final double scale = max > min ? BINS / (max - min) : 0;
+        final long bins[] = IntStream.range(0, volume.ZDIM).parallel().collect(() -> new long[BINS], (h, z) -> {
+            for (int y = 0; y < volume.YDIM; y++)
+                for (int x = 0; x < volume.XDIM; x++) {
+                    final double v = volume.getValue(x, y, z);
+                    if (v == v)
+                        h[Math.min(BINS - 1, (int) ((v - min) * scale))]++;
+                }
+        }, (h, g) -> {
+            for (int i = 0; i < BINS; i++)
+                h[i] += g[i];
+        });
+        VolumeStats stats = new VolumeStats();
+        stats.min = min;
+        stats.max = max;
+        stats.count = range[2];
+        for (long bin : bins)
+            stats.histogram.add((double) bin);
+        return stats;
+    }
+
+    private void write(PrintStream ps) {
+        ps.println("{");
+        ps.println("  \"size\": " + (long) size + ",");
+        ps.println("  \"mtime\": " + (long) mtime + ",");
+        ps.println("  \"min\": " + min + ",");
+        ps.println("  \"max\": " + max + ",");
+        ps.println("  \"count\": " + (long) count + ",");
+        ps.print("  \"histogram\": [");
+        for (int i = 0; i < histogram.size(); i++)
+            ps.print((i > 0 ? "," : "") + histogram.get(i).longValue());
+        ps.println("]");
+        ps.println("}");
+    }
+}
@@ -0,0 +1,56 @@
+package slicer;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Random access to the voxel data of a NIfTI volume. Values are addressed by
+ * their index in units of their own size (like the views of
+ * {@link java.nio.ByteBuffer}), and multi-byte values are returned in native
+ * form, the byte order of the file is resolved by the implementation.
+ * Implementations are read-only and safe to use from multiple threads.
+ */
+public interface VoxelSource extends Closeable {
+    /**
+     * @param index index of the byte
+     * @return the byte at index
+     */
+    byte getByte(long index);
+
+    /**
+     * @param index index of the 16-bit value
+     * @return the short at index
+     */
+    short getShort(long index);
+
+    /**
+     * @param index index of the 32-bit value
+     * @return the int at index, floating point values are returned as their raw
+     *         bits
+     */
+    int getInt(long index);
+
+    /**
+     * @param index index of the 64-bit value
+     * @return the long at index, floating point values are returned as their raw
+     *         bits
+     */
+    long getLong(long index);
+
+    /**
+     * @param XDIM x dimension of the volume
+     * @param YDIM y dimension of the volume
+     * @param ZDIM z dimension of the volume
+     * @return order of the voxels, the x-major order of NIfTI by default
+     */
+    default Layout layout(int XDIM, int YDIM, int ZDIM) {
+        return Layout.linear(XDIM, YDIM, ZDIM);
+    }
+
+    /**
+     * Releases the files held open by the source, nothing by default.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}